@@ -12,6 +12,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -43,13 +44,35 @@ public class BeeminderDbAdapter {
 	public static final String KEY_POINTID = "point_id";
 	// Uses KEY_PID
 
-	private static final String DATABASE_NAME = "timepie_beeminder";
-	private static final int DATABASE_VERSION = 2;
+	// Table for pending point operations
+	public static final String KEY_OP = "op";
+	public static final String KEY_ATTEMPTS = "attempts";
+	public static final String KEY_DUE = "due";
+	// Uses KEY_PID, KEY_GID, KEY_POINTID, KEY_VALUE, KEY_TIMESTAMP,
+	// KEY_COMMENT and KEY_REQID
+
+	// Operation types in the outbox
+	public static final int OP_CREATE = 1;
+	public static final int OP_DELETE = 2;
+	// Resubmits a daily point after its value changed. The new point is
+	// created first and the old one retracted after, so the goal shows both
+	// until the retract goes through.
+	public static final int OP_UPDATE = 3;
+	// Deletes a submitted point that has no local row anymore, by request id
+	public static final int OP_RETRACT = 4;
+
+	// Request ids of daily points that were not submitted yet start with
+	// this, followed by the goal id and the day
+	public static final String LOCAL_REQID = "local:";
+
+	static final String DATABASE_NAME = "timepie_beeminder";
+	private static final int DATABASE_VERSION = 5;
 
 	private static final String GOALS_TABLE = "goals";
 	private static final String GOALTAGS_TABLE = "goaltags";
 	private static final String POINTS_TABLE = "points";
 	private static final String POINTPINGS_TABLE = "pointpings";
+	private static final String OUTBOX_TABLE = "outbox";
 
 	private DatabaseHelper mDbHelper;
 	private SQLiteDatabase mDb;
@@ -63,6 +86,9 @@ public class BeeminderDbAdapter {
 	// a goal tag is a goal-tag pairing
 	private static final String CREATE_GOALTAGS = "create table goaltags (_id integer primary key autoincrement, "
 			+ "goal_id integer not null, tag_id integer not null," + "UNIQUE (goal_id, tag_id));";
+	// goal tags are also looked up by tag, the UNIQUE index only serves goals
+	private static final String CREATE_GOALTAGS_TID_INDEX = "create index if not exists goaltags_tag_id "
+			+ "on goaltags (tag_id, goal_id);";
 
 	// a point records submission details, corresponding goal and generating
 	// ping
@@ -73,6 +99,18 @@ public class BeeminderDbAdapter {
 	// a point ping is a point-ping pairing
 	private static final String CREATE_POINTPINGS = "create table pointpings (_id integer primary key autoincrement, "
 			+ "point_id integer not null, ping_id integer not null," + "UNIQUE (point_id, ping_id));";
+	// point pings are also looked up by ping, the UNIQUE index only serves points
+	private static final String CREATE_POINTPINGS_PID_INDEX = "create index if not exists pointpings_ping_id "
+			+ "on pointpings (ping_id, point_id);";
+
+	// an outbox entry is a point creation or deletion waiting to be sent to
+	// Beeminder, in the order they were queued. Creations carry the point
+	// details, deletions the local point id.
+	private static final String CREATE_OUTBOX = "create table if not exists outbox (_id integer primary key autoincrement, "
+			+ "op integer not null, ping_id integer not null, goal_id integer not null, point_id integer, "
+			+ "value real, time integer, comment text, attempts integer not null, due integer not null, req_id text);";
+	private static final String CREATE_OUTBOX_PID_INDEX = "create index if not exists outbox_ping_id "
+			+ "on outbox (ping_id);";
 
 	private final Context mCtx;
 
@@ -95,17 +133,43 @@ public class BeeminderDbAdapter {
 			db.execSQL(CREATE_GOALTAGS);
 			db.execSQL(CREATE_POINTS);
 			db.execSQL(CREATE_POINTPINGS);
+			db.execSQL(CREATE_GOALTAGS_TID_INDEX);
+			db.execSQL(CREATE_POINTPINGS_PID_INDEX);
+			db.execSQL(CREATE_OUTBOX);
+			db.execSQL(CREATE_OUTBOX_PID_INDEX);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-					+ ", which will destroy all old data");
-			db.execSQL("DROP TABLE IF EXISTS goals");
-			db.execSQL("DROP TABLE IF EXISTS goaltags");
-			db.execSQL("DROP TABLE IF EXISTS points");
-			db.execSQL("DROP TABLE IF EXISTS pointpings");
-			onCreate(db);
+			if (oldVersion < 2) {
+				Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+						+ ", which will destroy all old data");
+				db.execSQL("DROP TABLE IF EXISTS goals");
+				db.execSQL("DROP TABLE IF EXISTS goaltags");
+				db.execSQL("DROP TABLE IF EXISTS points");
+				db.execSQL("DROP TABLE IF EXISTS pointpings");
+				db.execSQL("DROP TABLE IF EXISTS outbox");
+				onCreate(db);
+			} else {
+				if (oldVersion < 3 && newVersion >= 3) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " indexing goal tags and point pings...");
+					db.execSQL(CREATE_GOALTAGS_TID_INDEX);
+					db.execSQL(CREATE_POINTPINGS_PID_INDEX);
+				}
+
+				if (oldVersion < 4 && newVersion >= 4) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding the point outbox...");
+					db.execSQL(CREATE_OUTBOX);
+					db.execSQL(CREATE_OUTBOX_PID_INDEX);
+				} else if (oldVersion < 5 && newVersion >= 5) {
+					// Outboxes created above already have the column
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " adding request ids to the outbox...");
+					db.execSQL("ALTER TABLE outbox ADD COLUMN req_id text");
+				}
+			}
 		}
 	}
 
@@ -115,6 +179,7 @@ public class BeeminderDbAdapter {
 
 	protected void deleteAllData() {
 		mDbHelper.onUpgrade(mDb, 1, DATABASE_VERSION);
+		BeeminderStatus.getInstance().invalidateAll();
 	}
 
 	/**
@@ -144,8 +209,10 @@ public class BeeminderDbAdapter {
 		try {
 			gid = newGoal(user, slug, token);
 		} catch (Exception e) {
+			// Relinking keeps the original link time and the points, so that
+			// a reconcile can resync the pings since then
 			gid = getGoalID(user, slug);
-			updateGoalTime(gid);
+			updateGoal(gid, user, slug, token);
 		}
 		if (!updateGoalTags(gid, tags)) {
 			Log.e(TAG, "error creating the goal-tag entries");
@@ -159,7 +226,9 @@ public class BeeminderDbAdapter {
 		initialValues.put(KEY_SLUG, slug);
 		initialValues.put(KEY_TOKEN, token);
 		initialValues.put(KEY_UPDATEDAT, now());
-		return mDb.insertOrThrow(GOALS_TABLE, null, initialValues);
+		long gid = mDb.insertOrThrow(GOALS_TABLE, null, initialValues);
+		BeeminderStatus.getInstance().invalidateAll();
+		return gid;
 	}
 
 	public void deleteAllGoals() {
@@ -180,7 +249,10 @@ public class BeeminderDbAdapter {
 	public boolean deleteGoal(long rowId) {
 		updateGoalTags(rowId, new ArrayList<String>(0));
 		removeGoalPoints(rowId);
-		return mDb.delete(GOALS_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		mDb.delete(OUTBOX_TABLE, KEY_GID + "=" + rowId, null);
+		boolean ret = mDb.delete(GOALS_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		BeeminderStatus.getInstance().invalidateAll();
+		return ret;
 	}
 
 	public long getGoalID(String user, String slug) {
@@ -219,6 +291,16 @@ public class BeeminderDbAdapter {
 
 	}
 
+	/**
+	 * Returns (tag id, goal id, goal update time) for all goal tags, used to
+	 * decide which goals a ping should have been submitted to.
+	 */
+	public Cursor fetchGoalTagTimes() {
+		return mDb.rawQuery("SELECT " + GOALTAGS_TABLE + "." + KEY_TID + ", " + GOALTAGS_TABLE + "." + KEY_GID + ", "
+				+ GOALS_TABLE + "." + KEY_UPDATEDAT + " FROM " + GOALTAGS_TABLE + " JOIN " + GOALS_TABLE + " ON "
+				+ GOALS_TABLE + "." + KEY_ROWID + " = " + GOALTAGS_TABLE + "." + KEY_GID, null);
+	}
+
 	public Cursor fetchAllGoals() {
 		return mDb.query(GOALS_TABLE, new String[] { KEY_ROWID, KEY_USERNAME, KEY_SLUG, KEY_TOKEN, KEY_UPDATEDAT },
 				null, null, null, null, null);
@@ -253,6 +335,7 @@ public class BeeminderDbAdapter {
 			// We remove previous point associations since our latest update
 			// time now would not match previous pings
 			removeGoalPoints(goalId);
+			BeeminderStatus.getInstance().invalidateAll();
 			return true;
 		} else return false;
 
@@ -328,7 +411,9 @@ public class BeeminderDbAdapter {
 		ContentValues init = new ContentValues();
 		init.put(KEY_GID, goal_id);
 		init.put(KEY_TID, tag_id);
-		return mDb.insertOrThrow(GOALTAGS_TABLE, null, init);
+		long id = mDb.insertOrThrow(GOALTAGS_TABLE, null, init);
+		BeeminderStatus.getInstance().invalidateAll();
+		return id;
 	}
 
 	public boolean isGoalTag(long gid, long tid) {
@@ -341,7 +426,9 @@ public class BeeminderDbAdapter {
 
 	public boolean deleteGoalTag(long goalId, long tagId) {
 		String query = KEY_GID + "=" + goalId + " AND " + KEY_TID + "=" + tagId;
-		return mDb.delete(GOALTAGS_TABLE, query, null) > 0;
+		boolean ret = mDb.delete(GOALTAGS_TABLE, query, null) > 0;
+		if (ret) BeeminderStatus.getInstance().invalidateAll();
+		return ret;
 	}
 
 	public Cursor fetchGoalTags(long id, String col_key, String order) {
@@ -350,8 +437,13 @@ public class BeeminderDbAdapter {
 	}
 
 	public Cursor fetchGoalTags(long id, String col_key) {
-		return mDb.query(true, GOALTAGS_TABLE, new String[] { KEY_GID, KEY_TID }, col_key + " = " + id, null, null,
-				null, null, null);
+		return mDb.rawQuery(goalTagsQuery(id, col_key), null);
+	}
+
+	/** SQL of fetchGoalTags(id, col_key) */
+	static String goalTagsQuery(long id, String col_key) {
+		return SQLiteQueryBuilder.buildQueryString(true, GOALTAGS_TABLE, new String[] { KEY_GID, KEY_TID }, col_key
+				+ " = " + id, null, null, null, null);
 	}
 
 	public String fetchTagString(long goal_id) throws Exception {
@@ -435,6 +527,7 @@ public class BeeminderDbAdapter {
 			db.updateTagCache(db.getTID(tag));
 		}
 		db.close();
+		BeeminderStatus.getInstance().invalidateAll();
 		return true;
 	}
 
@@ -497,17 +590,40 @@ public class BeeminderDbAdapter {
 	}
 
 	public boolean updatePoint(long pointId, double value, long time, String comment) {
-		// Insert authorization into the table
 		ContentValues values = new ContentValues();
 		values.put(KEY_VALUE, value);
 		values.put(KEY_TIMESTAMP, time);
 		values.put(KEY_COMMENT, comment);
-		int numrows = mDb.update(GOALS_TABLE, values, KEY_ROWID + " = " + pointId, null);
+		int numrows = mDb.update(POINTS_TABLE, values, KEY_ROWID + " = " + pointId, null);
 
 		if (numrows == 1) return true;
 		else return false;
 	}
 
+	/** Records the request id a point got when it was (re)submitted. */
+	public boolean updatePointRequest(long pointId, String req_id) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_REQID, req_id);
+		return mDb.update(POINTS_TABLE, values, KEY_ROWID + " = " + pointId, null) == 1;
+	}
+
+	/**
+	 * Returns the id of the point of a goal at the given time, used to find
+	 * the daily point of a goal, or -1 if there is none. Points with a queued
+	 * deletion are on their way out and are not returned, so that pings
+	 * tagged meanwhile go into a new point.
+	 */
+	public long findPoint(long goal_id, long time) {
+		Cursor c = mDb.query(POINTS_TABLE, new String[] { KEY_ROWID }, KEY_GID + "=" + goal_id + " AND "
+				+ KEY_TIMESTAMP + "=" + time + " AND NOT EXISTS (SELECT 1 FROM " + OUTBOX_TABLE + " WHERE "
+				+ OUTBOX_TABLE + "." + KEY_OP + "=" + OP_DELETE + " AND " + OUTBOX_TABLE + "." + KEY_POINTID + "="
+				+ POINTS_TABLE + "." + KEY_ROWID + ")", null, null, null, null, "1");
+		long ptid = -1;
+		if (c.moveToFirst()) ptid = c.getLong(0);
+		c.close();
+		return ptid;
+	}
+
 	public void removeGoalPoints(long goal_id) {
 		Cursor c = mDb.query(true, POINTS_TABLE, new String[] { KEY_ROWID, KEY_GID }, KEY_GID + "=" + goal_id, null,
 				null, null, null, null);
@@ -541,7 +657,9 @@ public class BeeminderDbAdapter {
 		ContentValues init = new ContentValues();
 		init.put(KEY_POINTID, point_id);
 		init.put(KEY_PID, ping_id);
-		return mDb.insertOrThrow(POINTPINGS_TABLE, null, init);
+		long id = mDb.insertOrThrow(POINTPINGS_TABLE, null, init);
+		BeeminderStatus.getInstance().invalidate(ping_id);
+		return id;
 	}
 
 	public boolean isPointPing(long pointId, long pingId) {
@@ -554,17 +672,165 @@ public class BeeminderDbAdapter {
 
 	public boolean deleteAllPointPings(long pointId) {
 		String query = KEY_POINTID + "=" + pointId;
-		return mDb.delete(POINTPINGS_TABLE, query, null) > 0;
+		boolean ret = mDb.delete(POINTPINGS_TABLE, query, null) > 0;
+		if (ret) BeeminderStatus.getInstance().invalidateAll();
+		return ret;
 	}
 
 	public boolean deletePointPing(long pointId, long pingId) {
 		String query = KEY_POINTID + "=" + pointId + " AND " + KEY_PID + "=" + pingId;
-		return mDb.delete(POINTPINGS_TABLE, query, null) > 0;
+		boolean ret = mDb.delete(POINTPINGS_TABLE, query, null) > 0;
+		if (ret) BeeminderStatus.getInstance().invalidate(pingId);
+		return ret;
 	}
 
 	public Cursor fetchPointPings(long id, String col_key) {
-		return mDb.query(true, POINTPINGS_TABLE, new String[] { KEY_POINTID, KEY_PID }, col_key + " = " + id, null,
-				null, null, null, null);
+		return mDb.rawQuery(pointPingsQuery(id, col_key), null);
+	}
+
+	/** SQL of fetchPointPings(id, col_key) */
+	static String pointPingsQuery(long id, String col_key) {
+		return SQLiteQueryBuilder.buildQueryString(true, POINTPINGS_TABLE, new String[] { KEY_POINTID, KEY_PID },
+				col_key + " = " + id, null, null, null, null);
+	}
+
+	/**
+	 * Counts the points submitted for each of the given pings in a single
+	 * query. Returns (ping id, count) rows, pings without points are left
+	 * out.
+	 */
+	public Cursor countPointPings(long[] pingIds) {
+		return mDb.rawQuery(countPointPingsQuery(pingIds), null);
+	}
+
+	/** SQL of countPointPings(pingIds) */
+	static String countPointPingsQuery(long[] pingIds) {
+		return "SELECT " + KEY_PID + ", COUNT(*) FROM " + POINTPINGS_TABLE + " WHERE " + KEY_PID + " IN ("
+				+ PingsDbAdapter.idList(pingIds) + ") GROUP BY " + KEY_PID;
+	}
+
+	// ===================== Outbox database utilities =====================
+
+	/**
+	 * Queues a point creation for the given ping and goal, due right away.
+	 * 
+	 * @return the id of the outbox entry
+	 */
+	public long queuePointCreate(long ping_id, long goal_id, double value, long time, String comment) {
+		ContentValues init = new ContentValues();
+		init.put(KEY_OP, OP_CREATE);
+		init.put(KEY_PID, ping_id);
+		init.put(KEY_GID, goal_id);
+		init.put(KEY_VALUE, value);
+		init.put(KEY_TIMESTAMP, time);
+		init.put(KEY_COMMENT, comment);
+		init.put(KEY_ATTEMPTS, 0);
+		init.put(KEY_DUE, now());
+		return mDb.insert(OUTBOX_TABLE, null, init);
+	}
+
+	/**
+	 * Queues the deletion of a point submitted for the given ping, due right
+	 * away.
+	 * 
+	 * @return the id of the outbox entry
+	 */
+	public long queuePointDelete(long ping_id, long goal_id, long point_id) {
+		ContentValues init = new ContentValues();
+		init.put(KEY_OP, OP_DELETE);
+		init.put(KEY_PID, ping_id);
+		init.put(KEY_GID, goal_id);
+		init.put(KEY_POINTID, point_id);
+		init.put(KEY_ATTEMPTS, 0);
+		init.put(KEY_DUE, now());
+		return mDb.insert(OUTBOX_TABLE, null, init);
+	}
+
+	/**
+	 * Queues resubmitting a daily point with its current value, unless that
+	 * is queued already. Further changes to the point before it is sent are
+	 * picked up by the same operation, which is then attributed to the ping
+	 * changed last.
+	 */
+	public void queuePointUpdate(long ping_id, long goal_id, long point_id) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_PID, ping_id);
+		if (mDb.update(OUTBOX_TABLE, values, KEY_OP + "=" + OP_UPDATE + " AND " + KEY_POINTID + "=" + point_id,
+				null) > 0) return;
+		ContentValues init = new ContentValues();
+		init.put(KEY_OP, OP_UPDATE);
+		init.put(KEY_PID, ping_id);
+		init.put(KEY_GID, goal_id);
+		init.put(KEY_POINTID, point_id);
+		init.put(KEY_ATTEMPTS, 0);
+		init.put(KEY_DUE, now());
+		mDb.insert(OUTBOX_TABLE, null, init);
+	}
+
+	/** Drops queued resubmissions of a point that is going away. */
+	public void unqueuePointUpdate(long point_id) {
+		mDb.delete(OUTBOX_TABLE, KEY_OP + "=" + OP_UPDATE + " AND " + KEY_POINTID + "=" + point_id, null);
+	}
+
+	/** Queues the deletion of a submitted point by its request id. */
+	public long queuePointRetract(long ping_id, long goal_id, String req_id) {
+		ContentValues init = new ContentValues();
+		init.put(KEY_OP, OP_RETRACT);
+		init.put(KEY_PID, ping_id);
+		init.put(KEY_GID, goal_id);
+		init.put(KEY_REQID, req_id);
+		init.put(KEY_ATTEMPTS, 0);
+		init.put(KEY_DUE, now());
+		return mDb.insert(OUTBOX_TABLE, null, init);
+	}
+
+	/** Returns all queued operations in the order they were queued. */
+	public Cursor fetchOutbox() {
+		return mDb.query(OUTBOX_TABLE, new String[] { KEY_ROWID, KEY_OP, KEY_PID, KEY_GID, KEY_POINTID, KEY_VALUE,
+				KEY_TIMESTAMP, KEY_COMMENT, KEY_ATTEMPTS, KEY_DUE, KEY_REQID }, null, null, null, null, KEY_ROWID);
+	}
+
+	/** Returns the queued operations for a single ping, oldest first. */
+	public Cursor fetchOutboxForPing(long ping_id) {
+		return mDb.query(OUTBOX_TABLE, new String[] { KEY_ROWID, KEY_OP, KEY_GID, KEY_POINTID }, KEY_PID + "="
+				+ ping_id, null, null, null, KEY_ROWID);
+	}
+
+	/**
+	 * Returns the earliest time at which the oldest queued operation of some
+	 * goal is due, or -1 if the outbox is empty. Operations queued behind the
+	 * oldest one of their goal wait for it.
+	 */
+	public long getOutboxNextDue() {
+		Cursor c = mDb.rawQuery("SELECT MIN(" + KEY_DUE + ") FROM " + OUTBOX_TABLE + " WHERE " + KEY_ROWID
+				+ " IN (SELECT MIN(" + KEY_ROWID + ") FROM " + OUTBOX_TABLE + " GROUP BY " + KEY_GID + ")", null);
+		long due = -1;
+		if (c.moveToFirst() && !c.isNull(0)) due = c.getLong(0);
+		c.close();
+		return due;
+	}
+
+	/** Records a failed attempt of a queued operation and when to try again. */
+	public boolean rescheduleOutboxOp(long op_id, int attempts, long due) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_ATTEMPTS, attempts);
+		values.put(KEY_DUE, due);
+		return mDb.update(OUTBOX_TABLE, values, KEY_ROWID + "=" + op_id, null) > 0;
+	}
+
+	/**
+	 * Holds back the operations queued for a ping until the given time.
+	 * Operations that already failed keep their retry time.
+	 */
+	public int deferOutboxForPing(long ping_id, long due) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_DUE, due);
+		return mDb.update(OUTBOX_TABLE, values, KEY_PID + "=" + ping_id + " AND " + KEY_ATTEMPTS + "=0 AND "
+				+ KEY_DUE + "<" + due, null);
+	}
+
+	public boolean deleteOutboxOp(long op_id) {
+		return mDb.delete(OUTBOX_TABLE, KEY_ROWID + "=" + op_id, null) > 0;
 	}
 
 	public List<Long> fetchPingsForPoint(long point_id) throws Exception {
@@ -580,4 +846,108 @@ public class BeeminderDbAdapter {
 		c.close();
 		return ret;
 	}
+
+	// ===================== Reconciliation utilities =====================
+	// These join with the pings database, which attachPings() makes
+	// available under the name PINGS_ALIAS.
+
+	private static final String PINGS_ALIAS = "tt";
+
+	// (ping, goal) pairs that should have a point: the ping has one of the
+	// goal's tags and was not before the goal was linked
+	private static final String DESIRED_PAIR = "EXISTS (SELECT 1 FROM " + PINGS_ALIAS + ".tag_ping tp JOIN "
+			+ GOALTAGS_TABLE + " gt ON gt." + KEY_TID + " = tp.tag_id WHERE tp.ping_id = p._id AND gt." + KEY_GID
+			+ " = g." + KEY_ROWID + ") AND p.ping >= g." + KEY_UPDATEDAT;
+
+	/**
+	 * Attaches the pings database to this connection. Must be called outside
+	 * of transactions and undone with detachPings().
+	 */
+	public void attachPings() {
+		String path = mCtx.getDatabasePath(PingsDbAdapter.DATABASE_NAME).getPath();
+		mDb.execSQL("ATTACH DATABASE ? AS " + PINGS_ALIAS, new Object[] { path });
+	}
+
+	public void detachPings() {
+		mDb.execSQL("DETACH DATABASE " + PINGS_ALIAS);
+	}
+
+	public void beginTransaction() {
+		mDb.beginTransaction();
+	}
+
+	public void setTransactionSuccessful() {
+		mDb.setTransactionSuccessful();
+	}
+
+	public void endTransaction() {
+		mDb.endTransaction();
+	}
+
+	/** Returns the condition selecting pings p in a time range for goals g. */
+	private static String pairRange(long from, long to, long goal_id) {
+		String where = "p.ping >= " + from + " AND p.ping <= " + to;
+		if (goal_id >= 0) where += " AND g." + KEY_ROWID + " = " + goal_id;
+		return where;
+	}
+
+	/**
+	 * Drops queued deletions of points whose pings should keep them. Only
+	 * looks at pings between from and to, and at a single goal unless
+	 * goal_id is -1.
+	 */
+	public int cancelDesiredDeletes(long from, long to, long goal_id) {
+		return mDb.delete(OUTBOX_TABLE, KEY_OP + " = " + OP_DELETE + " AND " + KEY_POINTID + " IN (SELECT pp."
+				+ KEY_POINTID + " FROM " + POINTPINGS_TABLE + " pp JOIN " + POINTS_TABLE + " pt ON pt." + KEY_ROWID
+				+ " = pp." + KEY_POINTID + " JOIN " + GOALS_TABLE + " g ON g." + KEY_ROWID + " = pt." + KEY_GID
+				+ " JOIN " + PINGS_ALIAS + ".pings p ON p._id = pp." + KEY_PID + " WHERE " + pairRange(from, to, goal_id)
+				+ " AND " + DESIRED_PAIR + ")", null);
+	}
+
+	/** Drops queued creations for pings that should not have them. */
+	public int dropUndesiredCreates(long from, long to, long goal_id) {
+		return mDb.delete(OUTBOX_TABLE, KEY_OP + " = " + OP_CREATE + " AND " + KEY_ROWID + " IN (SELECT o."
+				+ KEY_ROWID + " FROM " + OUTBOX_TABLE + " o JOIN " + PINGS_ALIAS + ".pings p ON p._id = o." + KEY_PID
+				+ " JOIN " + GOALS_TABLE + " g ON g." + KEY_ROWID + " = o." + KEY_GID + " WHERE o." + KEY_OP + " = "
+				+ OP_CREATE + " AND " + pairRange(from, to, goal_id) + " AND NOT (" + DESIRED_PAIR + "))", null);
+	}
+
+	/**
+	 * Returns (ping id, ping time, period, goal id) for the pings that should
+	 * have a point for a goal but neither have one nor have one queued,
+	 * ordered by goal and time.
+	 */
+	public Cursor fetchMissingPoints(long from, long to, long goal_id) {
+		return mDb.rawQuery("SELECT DISTINCT p._id, p.ping, p.period, g." + KEY_ROWID + " FROM " + PINGS_ALIAS
+				+ ".pings p JOIN " + PINGS_ALIAS + ".tag_ping tp ON tp.ping_id = p._id JOIN " + GOALTAGS_TABLE
+				+ " gt ON gt." + KEY_TID + " = tp.tag_id JOIN " + GOALS_TABLE + " g ON g." + KEY_ROWID + " = gt."
+				+ KEY_GID + " WHERE " + pairRange(from, to, goal_id) + " AND p.ping >= g." + KEY_UPDATEDAT
+				+ " AND NOT EXISTS (SELECT 1 FROM " + POINTPINGS_TABLE + " pp JOIN " + POINTS_TABLE + " pt ON pt."
+				+ KEY_ROWID + " = pp." + KEY_POINTID + " WHERE pp." + KEY_PID + " = p._id AND pt." + KEY_GID + " = g."
+				+ KEY_ROWID + ") AND NOT EXISTS (SELECT 1 FROM " + OUTBOX_TABLE + " o WHERE o." + KEY_OP + " = "
+				+ OP_CREATE + " AND o." + KEY_PID + " = p._id AND o." + KEY_GID + " = g." + KEY_ROWID + ") ORDER BY g."
+				+ KEY_ROWID + ", p.ping", null);
+	}
+
+	/**
+	 * Returns (ping id, goal id, point id) for the pings covered by points
+	 * of goals they should not have points for, leaving out points already
+	 * queued for deletion.
+	 */
+	public Cursor fetchExtraPoints(long from, long to, long goal_id) {
+		return mDb.rawQuery("SELECT pp." + KEY_PID + ", pt." + KEY_GID + ", pt." + KEY_ROWID + " FROM "
+				+ POINTPINGS_TABLE + " pp JOIN " + POINTS_TABLE + " pt ON pt." + KEY_ROWID + " = pp." + KEY_POINTID
+				+ " JOIN " + GOALS_TABLE + " g ON g." + KEY_ROWID + " = pt." + KEY_GID + " JOIN " + PINGS_ALIAS
+				+ ".pings p ON p._id = pp." + KEY_PID + " WHERE " + pairRange(from, to, goal_id) + " AND NOT ("
+				+ DESIRED_PAIR + ") AND NOT EXISTS (SELECT 1 FROM " + OUTBOX_TABLE + " o WHERE o." + KEY_OP + " = "
+				+ OP_DELETE + " AND o." + KEY_POINTID + " = pt." + KEY_ROWID + ") ORDER BY pt." + KEY_GID + ", p.ping",
+				null);
+	}
+
+	/** Returns (point id, goal id) for all points covering a ping. */
+	public Cursor fetchPingPointGoals(long ping_id) {
+		return mDb.rawQuery("SELECT pt." + KEY_ROWID + ", pt." + KEY_GID + " FROM " + POINTPINGS_TABLE + " pp JOIN "
+				+ POINTS_TABLE + " pt ON pt." + KEY_ROWID + " = pp." + KEY_POINTID + " WHERE pp." + KEY_PID + " = "
+				+ ping_id, null);
+	}
 }
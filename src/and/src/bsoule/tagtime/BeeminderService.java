@@ -3,7 +3,12 @@ package bsoule.tagtime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -16,7 +21,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -28,15 +33,41 @@ public class BeeminderService extends IntentService {
 	private static final boolean LOCAL_LOGV = false && !TagTime.DISABLE_LOGV;
 
 	public static final String ACTION_EDITPING = "editping";
+	// Sends the point operations waiting in the outbox
+	public static final String ACTION_DRAIN = "drain";
+	// Brings the points of pings in a time range in line with their tags
+	public static final String ACTION_RECONCILE = "reconcile";
+	// Sets the drain alarm again from the outbox, which is needed after a
+	// reboot or an update clears alarms
+	public static final String ACTION_RESCHEDULE = "reschedule";
 
 	public static final String KEY_PID = "ping_id";
 	public static final String KEY_OLDTAGS = "oldtags";
 	public static final String KEY_NEWTAGS = "newtags";
-	public static final String KEY_RETRIES = "retries";
+	// Time range and goal for ACTION_RECONCILE. All pings up to now and all
+	// goals if left out
+	public static final String KEY_FROM = "from";
+	public static final String KEY_TO = "to";
+	public static final String KEY_GID = "goal_id";
+	// Makes ACTION_RECONCILE only add missing points, leaving submitted ones
+	// alone. Used when goal tags change, so that past data is not deleted.
+	public static final String KEY_CREATE_ONLY = "create_only";
+
+	// Preference for keeping one point per goal and day instead of one per
+	// ping
+	public static final String PREF_DAILY = "beeminderDailyPref";
 
 	private static final int SEMAPHORE_TIMEOUT = 30;
-	private static final int RETRY_DELAY = 60;
-	private static final int MAX_RETRIES = 5;
+	// Seconds a ping has to stay unedited before its operations are sent, so
+	// that going back and forth over it only sends the final state
+	private static final int EDIT_QUIET_SECS = 20;
+	// Delays in seconds between attempts of an outbox operation, doubling
+	// from RETRY_BASE up to RETRY_MAX
+	private static final int RETRY_BASE = 60;
+	private static final int RETRY_MAX = 3600;
+	private static final int MAX_ATTEMPTS = 8;
+
+	private static final Random sRandom = new Random();
 
 	private BeeminderDbAdapter mBeeDB;
 	private PingsDbAdapter mPingDB;
@@ -45,24 +76,40 @@ public class BeeminderService extends IntentService {
 	private final Semaphore mSubmitSem = new Semaphore(0, true);
 	private final Semaphore mOpenSem = new Semaphore(0, true);
 	private boolean mWaitingOpen = false;
-	private Session.ErrorType mLastError = null;
-
-	private class Point {
-		public int submissionId;
-		public String requestId;
-		public String user;
-		public String slug;
-		public double value;
-		public long timestamp;
-		public String comment;
-
-		public Point() {
-			submissionId = -1;
-			requestId = null;
-		}
-	};
 
-	private Point mPoint = new Point();
+	// Goal the session is currently opened for
+	private long mGoalId = -1;
+	private String mGoalUser;
+	private String mGoalSlug;
+
+	/*
+	 * An outbox operation being sent to Beeminder. Filled in by the
+	 * submission callback when Beeminder answers.
+	 */
+	private static class Submission {
+		long opId;
+		int op;
+		long pingId;
+		long goalId;
+		long pointId;
+		// Request id of the point to delete, or of the created point once
+		// answered
+		String requestId;
+		// Request id of the submitted point an update replaces, if any
+		String replaced;
+		double value;
+		long time;
+		String comment;
+		int attempts;
+
+		boolean answered = false;
+		boolean failed = false;
+		Session.ErrorType error = null;
+	}
+
+	// Submissions of the current goal that are waiting for their callbacks,
+	// by submission id. Guarded by itself.
+	private final Map<Integer, Submission> mSubmissions = new HashMap<Integer, Submission>();
 
 	private void notifyVersionError(String submsg) {
 		String msg = "Error opening Beeminder session.";
@@ -87,33 +134,17 @@ public class BeeminderService extends IntentService {
 		nm.notify(0, notif);
 	}
 
-	private void retryIntent() {
-		Intent intent = new Intent(getApplicationContext(), BeeminderService.class);
-		intent.setAction(ACTION_EDITPING);
-		intent.putExtra(KEY_PID, mPingId);
-		intent.putExtra(KEY_OLDTAGS, mOldTagsIn);
-		intent.putExtra(KEY_NEWTAGS, mNewTagsIn);
-		intent.putExtra(KEY_RETRIES, mRetries);
-		intent.setData(Uri.parse("file://" + mPoint.requestId + mRetries));
-		PendingIntent sender = PendingIntent.getService(getApplicationContext(), 0, intent, 0);
-		AlarmManager am = (AlarmManager) getSystemService(ALARM_SERVICE);
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.SECOND, RETRY_DELAY);
-		if (LOCAL_LOGV) Log.v(TAG, "Retrying edits for ping " + mPingId + " at " + cal.getTimeInMillis());
-		am.set(AlarmManager.RTC_WAKEUP, cal.getTimeInMillis(), sender);
-	}
-
-	private void notifyForResubmit() {
-		String msg = "Error updating ping " + mPingId;
+	private void notifyForResubmit(long pingId) {
+		String msg = "Error updating ping " + pingId;
 		String submsg = "Click to re-edit ping";
 		Intent intent = new Intent(this, EditPing.class);
-		intent.putExtra(PingsDbAdapter.KEY_ROWID, mPingId);
-		PendingIntent ci = PendingIntent.getActivity(this, mPoint.submissionId, intent, 0);
+		intent.putExtra(PingsDbAdapter.KEY_ROWID, pingId);
+		PendingIntent ci = PendingIntent.getActivity(this, (int) pingId, intent, 0);
 		NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 		Notification notif = new NotificationCompat.Builder(this).setContentTitle(msg).setContentText(submsg)
 				.setSmallIcon(R.drawable.error_ticker).setContentIntent(ci).build();
 		notif.flags |= Notification.FLAG_AUTO_CANCEL;
-		nm.notify(mPoint.submissionId, notif);
+		nm.notify((int) pingId, notif);
 	}
 
 	private class SessionStatusCallback implements Session.StatusCallback {
@@ -137,9 +168,8 @@ public class BeeminderService extends IntentService {
 				} else if (session.getError().type == Session.ErrorType.ERROR_UNAUTHORIZED) {
 					// TODO: Must remove this goal from the list of Beeminder
 					// links. This might happen when Beeminder app is uninstalled and reinstalled
-					notifyAuthorizationError(mPoint.user, mPoint.slug);
+					notifyAuthorizationError(mGoalUser, mGoalSlug);
 				}
-				mLastError = session.getError().type;
 
 			} else if (state == SessionState.CLOSED) {
 				// Nothing here since it is a normal close.
@@ -152,153 +182,78 @@ public class BeeminderService extends IntentService {
 		public void call(Session session, int submission_id, String request_id, String error) {
 			if (LOCAL_LOGV) Log.v(TAG, "Point Callback: Point operation completed, id=" + submission_id + ", req_id="
 					+ request_id + ", error=" + error);
-			if (error == null && submission_id == mPoint.submissionId) {
-				mPoint.requestId = request_id;
-				mLastError = null;
+			Submission sub;
+			synchronized (mSubmissions) {
+				sub = mSubmissions.remove(submission_id);
+			}
+			if (sub == null) {
+				Log.w(TAG, "Point Callback: Unknown or late submission id=" + submission_id);
+				return;
+			}
+			if (error == null) {
+				if (sub.op == BeeminderDbAdapter.OP_CREATE || sub.op == BeeminderDbAdapter.OP_UPDATE) {
+					sub.requestId = request_id;
+				}
 			} else {
-				Log.w(TAG, "Point Callback: Submission error or ID mismatch. msg=" + error);
-				if (session.getError().type == Session.ErrorType.ERROR_BADVERSION) {
-					notifyVersionError(session.getError().message);
-				} else if (session.getError().type == Session.ErrorType.ERROR_UNAUTHORIZED) {
-					// TODO: Remove this goal from the list of Beeminder links.
-					notifyAuthorizationError(mPoint.user, mPoint.slug);
-				} else if (session.getError().type == Session.ErrorType.ERROR_NOTFOUND) {
-					// Points that did not yet make it to the server may appear
-					// as not found. Give up only after all the retries.
+				Log.w(TAG, "Point Callback: Submission error. msg=" + error);
+				sub.failed = true;
+				Session.SessionError err = session.getError();
+				if (err != null) {
+					if (err.type == Session.ErrorType.ERROR_BADVERSION) {
+						notifyVersionError(err.message);
+					} else if (err.type == Session.ErrorType.ERROR_UNAUTHORIZED) {
+						// TODO: Remove this goal from the list of Beeminder links.
+						notifyAuthorizationError(mGoalUser, mGoalSlug);
+					} else if (err.type == Session.ErrorType.ERROR_NOTFOUND) {
+						// Points that did not yet make it to the server may appear
+						// as not found. Give up only after all the retries.
+					}
+					sub.error = err.type;
 				}
-				mLastError = session.getError().type;
 			}
+			sub.answered = true;
 			mSubmitSem.release();
 		}
 	}
 
-	private boolean initializePointFromGoal(long goal_id) {
+	/** Looks up the user and slug of a goal. Returns false if it is gone. */
+	private boolean initializeGoal(long goal_id) {
 		Cursor c = mBeeDB.fetchGoal(goal_id);
-		if (c.getCount() == 0) return false;
-		mPoint.user = c.getString(1);
-		mPoint.slug = c.getString(2);
-		mPoint.requestId = null;
-		c.close();
-		return true;
-	}
-
-	private boolean initializePoint(long point_id) {
-		Cursor c = mBeeDB.fetchPoint(point_id);
-		if (c.getCount() == 0) return false;
-		initializePointFromGoal(c.getLong(5));
-		mPoint.requestId = c.getString(1);
-		c.close();
-		return true;
-	}
-
-	private String createBeeminderPoint(long goal_id, double value, long time, String comment) {
-		mLastError = null;
-		if (!initializePointFromGoal(goal_id)) return null;
-		mPoint.value = value;
-		mPoint.timestamp = time;
-		mPoint.comment = comment;
-
-		if (mBeeminder != null) {
-			try {
-				if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Requesting open for " + mPoint.user + "/"
-						+ mPoint.slug);
-
-				mWaitingOpen = true;
-				mBeeminder.reopenForGoal(mPoint.user, mPoint.slug);
-
-				//if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Open finished, waiting for open semaphore.");
-
-				// Try to acquire semaphore with a timeout of 2 seconds
-				boolean opened = mOpenSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-
-				//if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Open semaphore acquired:" + opened);
-
-				if (mBeeminder.getState() == Session.SessionState.OPENED) {
-
-					if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Submitting point.");
-
-					mPoint.submissionId = mBeeminder.createPoint(mPoint.value, mPoint.timestamp, mPoint.comment);
-
-					//if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Submission done, waiting for point semaphore");
-
-					// Try to acquire semaphore with a timeout of 2 seconds
-					boolean submitted = mSubmitSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-
-					if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Submit semaphore acquired:" + submitted);
-				}
-
-				if (LOCAL_LOGV) Log.v(TAG, "createBeeminderPoint: Closing session.");
-
-				//mBeeminder.close();
-			} catch (Session.SessionException e) {
-				Log.w(TAG, "createBeeminderPoint: Error opening session or submitting point. msg=" + e.getMessage());
-				Session.SessionError err = mBeeminder.getError(); 
-				if (err != null && err.type == Session.ErrorType.ERROR_UNAUTHORIZED) {
-					Log.w(TAG, "createBeeminderPoint: Unauthorized goal. Deleting link to goal "+goal_id);
-					mBeeDB.deleteGoal(goal_id);					
-				}
-			} catch (InterruptedException e) {
-				Log.w(TAG, "createBeeminderPoint: interrupted. msg=" + e.getMessage());
-			}
-
-		}
-
-		if (mLastError != null) {
-			retryIntent();
-			return null;
+		try {
+			if (c.getCount() == 0) return false;
+			mGoalId = goal_id;
+			mGoalUser = c.getString(1);
+			mGoalSlug = c.getString(2);
+			return true;
+		} finally {
+			c.close();
 		}
-
-		return mPoint.requestId;
 	}
 
-	private boolean deleteBeeminderPoint(long point_id) {
-		boolean result = false;
-		mLastError = null;
-		if (!initializePoint(point_id)) return false;
-
-		if (mBeeminder != null) {
-			try {
-				if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Requesting open for " + mPoint.user + "/"
-						+ mPoint.slug);
-
-				mWaitingOpen = true;
-				mBeeminder.reopenForGoal(mPoint.user, mPoint.slug);
-
-				//if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Open finished, waiting for open semaphore.");
-
-				// Try to acquire semaphore with a timeout of 2 seconds
-				boolean opened = mOpenSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-
-				//if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Open semaphore acquired:" + opened);
-
-				if (mBeeminder.getState() == Session.SessionState.OPENED) {
-
-					if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Deleting point.");
-
-					mPoint.submissionId = mBeeminder.deletePoint(mPoint.requestId);
-
-					//if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Submission done, waiting for point semaphore");
-
-					// Try to acquire semaphore with a timeout of 2 seconds
-					boolean submitted = mSubmitSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
-					if (mLastError == null) result = true;
-
-					if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Submit semaphore acquired:" + submitted);
-				}
-
-				if (LOCAL_LOGV) Log.v(TAG, "deleteBeeminderPoint: Closing session.");
-
-				//mBeeminder.close();
-			} catch (Session.SessionException e) {
-				Log.w(TAG, "deleteBeeminderPoint: Error opening session or deleting point. msg=" + e.getMessage());
-			} catch (InterruptedException e) {
-				Log.w(TAG, "deleteBeeminderPoint: interrupted. msg=" + e.getMessage());
+	/**
+	 * Opens the session for the goal set up by initializeGoal(), blocking
+	 * until it is open or the open fails.
+	 */
+	private boolean openGoal() {
+		if (mBeeminder == null) return false;
+		try {
+			if (LOCAL_LOGV) Log.v(TAG, "openGoal: Requesting open for " + mGoalUser + "/" + mGoalSlug);
+			mOpenSem.drainPermits();
+			mWaitingOpen = true;
+			mBeeminder.reopenForGoal(mGoalUser, mGoalSlug);
+			mOpenSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS);
+			return mBeeminder.getState() == Session.SessionState.OPENED;
+		} catch (Session.SessionException e) {
+			Log.w(TAG, "openGoal: Error opening session. msg=" + e.getMessage());
+			Session.SessionError err = mBeeminder.getError();
+			if (err != null && err.type == Session.ErrorType.ERROR_UNAUTHORIZED) {
+				Log.w(TAG, "openGoal: Unauthorized goal. Deleting link to goal " + mGoalId);
+				mBeeDB.deleteGoal(mGoalId);
 			}
-
+		} catch (InterruptedException e) {
+			Log.w(TAG, "openGoal: interrupted. msg=" + e.getMessage());
 		}
-		if (!result) retryIntent();
-
-		return result;
+		return false;
 	}
 
 	@Override
@@ -325,74 +280,116 @@ public class BeeminderService extends IntentService {
 		super.onDestroy();
 	}
 
-	private List<Long> findPingPoints(long ping_id) {
-		List<Long> points = new ArrayList<Long>(0);
-		Cursor pp = mBeeDB.fetchPointPings(ping_id, BeeminderDbAdapter.KEY_PID);
-		pp.moveToFirst();
-		int idx = pp.getColumnIndex(BeeminderDbAdapter.KEY_POINTID);
-		while (!pp.isAfterLast()) {
-			long ptid = pp.getLong(idx);
-			if (LOCAL_LOGV) Log.v(TAG, "findPingPoints: Found point " + ptid + " for ping " + ping_id);
-			points.add(ptid);
-			pp.moveToNext();
+	/** Queues the creation of a point for the given ping and goal. */
+	private void queuePointForPing(long ping_id, long goal_id, long time, int period, String tags) {
+		if (LOCAL_LOGV) Log.v(TAG, "queuePointForPing: Queueing new point for ping " + ping_id + " and goal " + goal_id);
+
+		double value = 1.0/60.0 * period;
+		String comment = "TagTime ping: "+tags;
+
+		mBeeDB.queuePointCreate(ping_id, goal_id, value, time, comment);
+	}
+
+	/** Returns the time of the daily point for the local day of a ping. */
+	private static long dayTime(long pingtime) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(pingtime * 1000);
+		cal.set(Calendar.HOUR_OF_DAY, 12);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		return cal.getTimeInMillis() / 1000;
+	}
+
+	/** Returns the hours covered by the given pings. */
+	private double pingsValue(List<Long> pings) {
+		int period = 0;
+		for (long pid : pings) {
+			Cursor ping = mPingDB.fetchPing(pid);
+			if (ping.getCount() > 0) period += ping.getInt(ping.getColumnIndex(PingsDbAdapter.KEY_PERIOD));
+			ping.close();
 		}
-		pp.close();
-		return points;
+		return 1.0 / 60.0 * period;
 	}
 
-	private long findGoalInPoints(long goal_id, List<Long> points) {
-		int idx;
-		Cursor ptc;
-		long ptgoal;
-
-		// Search for a previously submitted data point for the current goal id
-		for (long ptid : points) {
-			ptc = mBeeDB.fetchPoint(ptid);
-			idx = ptc.getColumnIndex(BeeminderDbAdapter.KEY_GID);
-			ptgoal = ptc.getLong(idx);
-			ptc.close();
-			if (ptgoal == goal_id) {
-				if (LOCAL_LOGV) Log.v(TAG, "findGoalInPoints: Found point " + ptid + " for goal " + goal_id);
-				return ptid;
-			}
+	/**
+	 * Recomputes the value of a daily point from the pings it covers and
+	 * queues its resubmission.
+	 */
+	private void refreshDailyPoint(long point_id, long goal_id, long time, long ping_id) {
+		List<Long> pings;
+		try {
+			pings = mBeeDB.fetchPingsForPoint(point_id);
+		} catch (Exception e) {
+			Log.w(TAG, "refreshDailyPoint: Could not fetch pings for point " + point_id);
+			return;
 		}
-		return -1;
+		mBeeDB.updatePoint(point_id, pingsValue(pings), time, "TagTime pings: " + pings.size());
+		mBeeDB.queuePointUpdate(ping_id, goal_id, point_id);
 	}
 
-	private void newPointForPing(long ping_id, long goal_id) {
-		if (LOCAL_LOGV) Log.v(TAG, "newPointForPing: Creating new point for ping " + ping_id + " and goal " + goal_id);
+	/**
+	 * Adds a ping to the daily point of a goal, creating the point locally if
+	 * the day has none yet. It is sent to Beeminder by an update.
+	 */
+	private void addPingToDailyPoint(long ping_id, long pingtime, long goal_id) {
+		long time = dayTime(pingtime);
+		long ptid = mBeeDB.findPoint(goal_id, time);
+		if (ptid < 0) {
+			ptid = mBeeDB.createPoint(BeeminderDbAdapter.LOCAL_REQID + goal_id + ":" + time, 0, time, "", goal_id);
+		}
+		if (LOCAL_LOGV) Log.v(TAG, "addPingToDailyPoint: Adding ping " + ping_id + " to point " + ptid);
+		try {
+			mBeeDB.newPointPing(ptid, ping_id);
+		} catch (Exception e) {
+			Log.w(TAG, "addPingToDailyPoint: Could not create pair for point=" + ptid + ", ping=" + ping_id);
+		}
+		refreshDailyPoint(ptid, goal_id, time, ping_id);
+	}
 
-		Cursor ping = mPingDB.fetchPing(ping_id);
-		int ping_idx = ping.getColumnIndex(PingsDbAdapter.KEY_PING);
-		int period_idx = ping.getColumnIndex(PingsDbAdapter.KEY_PERIOD);
-		long time = ping.getLong(ping_idx);
-		int period = ping.getInt(period_idx);
-		ping.close();
-		double value = 1.0/60.0 * period;
-		String comment = "TagTime ping: "+mNewTagsIn;
+	/**
+	 * Takes a ping out of a point. Points covering only this ping are
+	 * deleted, daily points covering other pings too are updated.
+	 */
+	private void removePingFromPoint(long ping_id, long point_id) {
+		Cursor pc = mBeeDB.fetchPoint(point_id);
+		if (pc.getCount() == 0) {
+			pc.close();
+			return;
+		}
+		String req = pc.getString(1);
+		long time = pc.getLong(3);
+		long gid = pc.getLong(5);
+		pc.close();
 
-		// Initiate creation of a Beeminder point submission. Will block until
-		// response with request ID is received
-		String req_id = createBeeminderPoint(goal_id, value, time, comment);
+		int covered;
+		try {
+			covered = mBeeDB.fetchPingsForPoint(point_id).size();
+		} catch (Exception e) {
+			covered = 1;
+		}
+		if (covered > 1) {
+			if (LOCAL_LOGV) Log.v(TAG, "removePingFromPoint: Removing ping " + ping_id + " from point " + point_id);
+			mBeeDB.deletePointPing(point_id, ping_id);
+			refreshDailyPoint(point_id, gid, time, ping_id);
+			return;
+		}
 
-		if (req_id != null) {
-			long ptid = mBeeDB.createPoint(req_id, value, time, comment, goal_id);
-			try {
-				mBeeDB.newPointPing(ptid, ping_id);
-			} catch (Exception e) {
-				Log.w(TAG, "newPointForPing: Could not create pair for point=" + ptid + ", ping=" + ping_id
-						+ " for goal " + goal_id);
-			}
-		} else {
-			Log.w(TAG, "newPointForPing: Beeminder submission failed for ping=" + ping_id + " to goal " + goal_id);
+		mBeeDB.unqueuePointUpdate(point_id);
+		if (req.startsWith(BeeminderDbAdapter.LOCAL_REQID)) {
+			// Never made it to Beeminder
+			mBeeDB.removePoint(point_id);
+			return;
 		}
+		if (LOCAL_LOGV) Log.v(TAG, "removePingFromPoint: Queueing removal of point " + point_id);
+		mBeeDB.queuePointDelete(ping_id, gid, point_id);
 	}
 
 	private long mPingId;
 	private long mPingTime;
+	private int mPingPeriod;
 	private String mOldTagsIn;
 	private String mNewTagsIn;
-	private int mRetries = 0;
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
@@ -403,35 +400,36 @@ public class BeeminderService extends IntentService {
 				Log.w(TAG, "onHandleIntent: No action specified!");
 				return;
 			}
-			if (action.equals(ACTION_EDITPING)) {
-				// Ping edited. Retrieve changes in tags and manage datapoints
-
-				if (!TagTime.checkBeeminder()) {
-					Log.w(TAG, "onHandleIntent: Beeminder app is not installed. Unlinking goals and aborting.");
-					mBeeDB.open();
-					mBeeDB.deleteAllGoals();
+			if (action.equals(ACTION_RESCHEDULE)) {
+				// Only reads the outbox, the drain checks for Beeminder
+				mBeeDB.open();
+				try {
+					scheduleDrain(mBeeDB.getOutboxNextDue());
+				} finally {
 					mBeeDB.close();
-					return;
 				}
-				
+				return;
+			}
+			if (!TagTime.checkBeeminder()) {
+				Log.w(TAG, "onHandleIntent: Beeminder app is not installed. Unlinking goals and aborting.");
+				mBeeDB.open();
+				mBeeDB.deleteAllGoals();
+				mBeeDB.close();
+				return;
+			}
+			if (action.equals(ACTION_EDITPING)) {
+				// Ping edited. Retrieve changes in tags and queue the changes
+				// to its datapoints
 				mPingId = intent.getLongExtra(KEY_PID, -1);
 				mOldTagsIn = intent.getStringExtra(KEY_OLDTAGS);
 				mNewTagsIn = intent.getStringExtra(KEY_NEWTAGS);
 
-				mRetries = intent.getIntExtra(KEY_RETRIES, 0);
-				mRetries++;
-
 				if (LOCAL_LOGV) {
 					Log.v(TAG, "onHandleIntent: =================================================");
 					Log.v(TAG, "onHandleIntent: Got ping_id=" + mPingId + ", oldtags=" + mOldTagsIn + ", newtags="
-							+ mNewTagsIn + ", attempt=" + mRetries);
+							+ mNewTagsIn);
 				}
 
-				if (mRetries >= MAX_RETRIES) {
-					Log.w(TAG, "onHandleIntent: Exceeded maximum retries for ping " + mPingId);
-					notifyForResubmit();
-					return;
-				}
 				if (mOldTagsIn == null || mNewTagsIn == null || mPingId < 0) {
 					Log.w(TAG, "onHandleIntent: Incomplete intent! ping_id=" + mPingId + ", oldtags=" + mOldTagsIn
 							+ ", newtags=" + mNewTagsIn);
@@ -440,73 +438,459 @@ public class BeeminderService extends IntentService {
 
 				mBeeDB.open();
 				mPingDB.open();
-
-				// Find data points that were previously generated by this ping.
-				List<Long> points = findPingPoints(mPingId);
-				Cursor pc = mPingDB.fetchPing(mPingId);
-				if (pc.getCount() == 0) {
-					Log.w(TAG, "onHandleIntent: Could not find requested ping with id " + mPingId);
-					return;
+				try {
+					queuePingEdits();
+					long now = Calendar.getInstance().getTimeInMillis() / 1000;
+					mBeeDB.deferOutboxForPing(mPingId, now + EDIT_QUIET_SECS);
+					scheduleDrain(mBeeDB.getOutboxNextDue());
+				} finally {
+					mPingDB.close();
+					mBeeDB.close();
 				}
-				int idx = pc.getColumnIndex(PingsDbAdapter.KEY_PING);
-				if (idx < 0) {
-					Log.w(TAG, "onHandleIntent: Could not retrieve ping time for id " + mPingId);
-					return;
+			} else if (action.equals(ACTION_RECONCILE)) {
+				long from = intent.getLongExtra(KEY_FROM, 0);
+				long to = intent.getLongExtra(KEY_TO, Calendar.getInstance().getTimeInMillis() / 1000);
+				long goal_id = intent.getLongExtra(KEY_GID, -1);
+				boolean createOnly = intent.getBooleanExtra(KEY_CREATE_ONLY, false);
+				// Tags saved in EditPing may still be on their way
+				TaggingWriter.getInstance(this).awaitIdle();
+				mBeeDB.open();
+				mPingDB.open();
+				try {
+					reconcile(from, to, goal_id, createOnly);
+					scheduleDrain(mBeeDB.getOutboxNextDue());
+				} finally {
+					mPingDB.close();
+					mBeeDB.close();
+				}
+			} else if (action.equals(ACTION_DRAIN)) {
+				mBeeDB.open();
+				try {
+					drainOutbox();
+				} finally {
+					mBeeDB.close();
 				}
-				mPingTime = pc.getLong(idx);
-
-				// Find all goals that match the new set of tags
-				String[] newtags = mNewTagsIn.trim().split(" ");
-				Set<Long> goals = mBeeDB.findGoalsForTagNames(Arrays.asList(newtags));
-
-				// Create new data points for all goals matching the edited ping
-				// if they were not found in the database
-				for (long gid : goals) {
-					// If goal was updated later than the ping, skip this goal
-					long updated_at = mBeeDB.getGoalUpdatedAt(gid);
-					if (updated_at > mPingTime) {
-						if (LOCAL_LOGV) Log.v(TAG, "onHandleIntent: Skipping goal " + gid + " since " + updated_at
-								+ ">" + mPingTime);
-						continue;
+			}
+		} else {
+			Log.w(TAG, "onHandleIntent: No intent received!");
+			return;
+		}
+	}
+
+	/**
+	 * Compares the goals matching the new tags of mPingId with the points it
+	 * has and queues the creations and deletions needed to make them agree.
+	 * Operations still queued for the ping from earlier edits are taken into
+	 * account, and dropped if this edit undoes them.
+	 */
+	private void queuePingEdits() {
+		Cursor pc = mPingDB.fetchPing(mPingId);
+		try {
+			if (pc.getCount() == 0) {
+				Log.w(TAG, "queuePingEdits: Could not find requested ping with id " + mPingId);
+				return;
+			}
+			int idx = pc.getColumnIndex(PingsDbAdapter.KEY_PING);
+			if (idx < 0) {
+				Log.w(TAG, "queuePingEdits: Could not retrieve ping time for id " + mPingId);
+				return;
+			}
+			mPingTime = pc.getLong(idx);
+			mPingPeriod = pc.getInt(pc.getColumnIndex(PingsDbAdapter.KEY_PERIOD));
+		} finally {
+			pc.close();
+		}
+
+		// Find data points that were previously generated by this ping, by
+		// goal. Further points for the same goal are left over.
+		Map<Long, Long> points = new HashMap<Long, Long>();
+		List<Long> leftover = new ArrayList<Long>(0);
+		Cursor ppc = mBeeDB.fetchPingPointGoals(mPingId);
+		try {
+			ppc.moveToFirst();
+			while (!ppc.isAfterLast()) {
+				long ptid = ppc.getLong(0);
+				if (points.containsKey(ppc.getLong(1))) leftover.add(ptid);
+				else points.put(ppc.getLong(1), ptid);
+				ppc.moveToNext();
+			}
+		} finally {
+			ppc.close();
+		}
+
+		// Operations queued by earlier edits of this ping: creations by goal
+		// and deletions by point
+		Map<Long, Long> queuedCreates = new HashMap<Long, Long>();
+		Map<Long, Long> queuedDeletes = new HashMap<Long, Long>();
+		Cursor ops = mBeeDB.fetchOutboxForPing(mPingId);
+		try {
+			ops.moveToFirst();
+			while (!ops.isAfterLast()) {
+				long opid = ops.getLong(0);
+				int op = ops.getInt(1);
+				if (op == BeeminderDbAdapter.OP_CREATE) queuedCreates.put(ops.getLong(2), opid);
+				else if (op == BeeminderDbAdapter.OP_DELETE) queuedDeletes.put(ops.getLong(3), opid);
+				ops.moveToNext();
+			}
+		} finally {
+			ops.close();
+		}
+
+		// Find all goals that match the new set of tags
+		String[] newtags = mNewTagsIn.trim().split(" ");
+		Set<Long> goals = mBeeDB.findGoalsForTagNames(Arrays.asList(newtags));
+		boolean daily = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREF_DAILY, false);
+
+		// Queue new data points for all goals matching the edited ping if they
+		// were not found in the database
+		for (long gid : goals) {
+			// If goal was updated later than the ping, skip this goal
+			long updated_at = mBeeDB.getGoalUpdatedAt(gid);
+			if (updated_at > mPingTime) {
+				if (LOCAL_LOGV) Log.v(TAG, "queuePingEdits: Skipping goal " + gid + " since " + updated_at + ">"
+						+ mPingTime);
+				continue;
+			}
+
+			// If we find an existing data point for this goal among points
+			// for this ping, keep it. Remove the point from the map since a
+			// point is always associated with only a single goal
+			Long ptid = points.remove(gid);
+			if (ptid != null) {
+				Long opid = queuedDeletes.remove(ptid);
+				if (opid != null) mBeeDB.deleteOutboxOp(opid);
+				continue;
+			}
+
+			// Already on its way
+			if (queuedCreates.remove(gid) != null) continue;
+
+			if (daily) addPingToDailyPoint(mPingId, mPingTime, gid);
+			else queuePointForPing(mPingId, gid, mPingTime, mPingPeriod, mNewTagsIn);
+		}
+
+		// Creations for goals that no longer match were never sent
+		for (long opid : queuedCreates.values())
+			mBeeDB.deleteOutboxOp(opid);
+
+		// Take the ping out of all points that were left unassociated with
+		// any goals that matched the new set of tags.
+		leftover.addAll(points.values());
+		for (long ptid : leftover) {
+			if (queuedDeletes.containsKey(ptid)) continue;
+			removePingFromPoint(mPingId, ptid);
+		}
+	}
+
+	/**
+	 * Compares the points that pings between from and to should have, given
+	 * their tags and the linked goals, with the points they have or have
+	 * queued, and queues the creations and deletions that make them agree.
+	 * Both sides are computed as sets by joining the two databases, rather
+	 * than ping by ping. Only goal_id is looked at unless it is -1. With
+	 * createOnly, points that should not exist are kept.
+	 */
+	private void reconcile(long from, long to, long goal_id, boolean createOnly) {
+		if (LOCAL_LOGV) Log.v(TAG, "reconcile: Pings " + from + " to " + to + ", goal " + goal_id);
+		boolean daily = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREF_DAILY, false);
+		List<long[]> missing = new ArrayList<long[]>();
+		List<long[]> extra = new ArrayList<long[]>();
+
+		mBeeDB.attachPings();
+		try {
+			mBeeDB.beginTransaction();
+			try {
+				mBeeDB.cancelDesiredDeletes(from, to, goal_id);
+				mBeeDB.dropUndesiredCreates(from, to, goal_id);
+				mBeeDB.setTransactionSuccessful();
+			} finally {
+				mBeeDB.endTransaction();
+			}
+			// Read both sides before changing the tables they come from
+			Cursor c = mBeeDB.fetchMissingPoints(from, to, goal_id);
+			try {
+				c.moveToFirst();
+				while (!c.isAfterLast()) {
+					missing.add(new long[] { c.getLong(0), c.getLong(1), c.getLong(2), c.getLong(3) });
+					c.moveToNext();
+				}
+			} finally {
+				c.close();
+			}
+			if (!createOnly) {
+				c = mBeeDB.fetchExtraPoints(from, to, goal_id);
+				try {
+					c.moveToFirst();
+					while (!c.isAfterLast()) {
+						extra.add(new long[] { c.getLong(0), c.getLong(1), c.getLong(2) });
+						c.moveToNext();
 					}
+				} finally {
+					c.close();
+				}
+			}
+		} finally {
+			mBeeDB.detachPings();
+		}
+		if (LOCAL_LOGV) Log.v(TAG, "reconcile: " + missing.size() + " missing, " + extra.size() + " extra");
 
-					// If we find an existing data point for this goal among
-					// points for this ping. Remove the point from the list
-					// since a point is always associated with only a single
-					// goal and ping
-					long ptid = findGoalInPoints(gid, points);
-					if (ptid >= 0) {
-						points.remove(ptid);
-						continue;
+		mBeeDB.beginTransaction();
+		try {
+			for (long[] e : extra)
+				removePingFromPoint(e[0], e[2]);
+			for (long[] m : missing) {
+				if (daily) {
+					addPingToDailyPoint(m[0], m[1], m[3]);
+				} else {
+					String tags;
+					try {
+						tags = mPingDB.fetchTagString(m[0]);
+					} catch (Exception ex) {
+						tags = "";
 					}
+					queuePointForPing(m[0], m[3], m[1], (int) m[2], tags);
+				}
+			}
+			mBeeDB.setTransactionSuccessful();
+		} finally {
+			mBeeDB.endTransaction();
+		}
+	}
 
-					// Create a new data point for this goal together with a
-					// ping pairing
-					newPointForPing(mPingId, gid);
+	/**
+	 * Sends the due operations in the outbox to Beeminder. Operations are
+	 * grouped by goal, so that the session is opened once per goal and all of
+	 * the goal's operations are sent back to back without waiting for each
+	 * answer. Within a goal, operations wait behind the oldest one if it is
+	 * not due yet. Sets an alarm for when the outbox is due again.
+	 */
+	private void drainOutbox() {
+		long now = Calendar.getInstance().getTimeInMillis() / 1000;
+		Map<Long, List<Submission>> byGoal = new LinkedHashMap<Long, List<Submission>>();
+		Set<Long> waiting = new HashSet<Long>();
+		Cursor c = mBeeDB.fetchOutbox();
+		try {
+			c.moveToFirst();
+			while (!c.isAfterLast()) {
+				long gid = c.getLong(3);
+				if (c.getLong(9) > now) waiting.add(gid);
+				if (!waiting.contains(gid)) {
+					Submission sub = new Submission();
+					sub.opId = c.getLong(0);
+					sub.op = c.getInt(1);
+					sub.pingId = c.getLong(2);
+					sub.goalId = gid;
+					sub.pointId = c.isNull(4) ? -1 : c.getLong(4);
+					sub.value = c.getDouble(5);
+					sub.time = c.getLong(6);
+					sub.comment = c.getString(7);
+					sub.attempts = c.getInt(8);
+					sub.requestId = c.getString(10);
+					List<Submission> subs = byGoal.get(gid);
+					if (subs == null) {
+						subs = new ArrayList<Submission>();
+						byGoal.put(gid, subs);
+					}
+					subs.add(sub);
 				}
+				c.moveToNext();
+			}
+		} finally {
+			c.close();
+		}
+
+		// Keeps an alarm set while submitting, in case the process is killed
+		// before the real one is set below
+		if (!byGoal.isEmpty()) scheduleDrain(now + RETRY_MAX);
+		for (Map.Entry<Long, List<Submission>> e : byGoal.entrySet())
+			submitGoal(e.getKey(), e.getValue(), now);
+		scheduleDrain(mBeeDB.getOutboxNextDue());
+	}
 
-				// Remove all points that were left unassociated with any goals
-				// that matched the new set of tags.
-				for (long ptid : points) {
-					if (LOCAL_LOGV) Log.v(TAG, "onHandleIntent: Removing point " + ptid);
-					boolean deleted = deleteBeeminderPoint(ptid);
-					if (deleted) mBeeDB.removePoint(ptid);
-					else if (mRetries >= (MAX_RETRIES - 1) && mLastError == Session.ErrorType.ERROR_NOTFOUND) {
-						// We give up on retrying point deletion after a number
-						// of retries with NOTFOUND as a result. The last retry
-						// will have gone through already
-						Log.w(TAG, "onHandleIntent: Giving up on delete for " + mPoint.user + "/" + mPoint.slug);
-						mBeeDB.removePoint(ptid);
+	/** Sends the operations of a single goal and records the results. */
+	private void submitGoal(long goal_id, List<Submission> subs, long now) {
+		// Goals unlinked since the operations were queued no longer want them
+		if (!initializeGoal(goal_id)) {
+			for (Submission sub : subs)
+				mBeeDB.deleteOutboxOp(sub.opId);
+			return;
+		}
+		long updated_at = mBeeDB.getGoalUpdatedAt(goal_id);
+		List<Submission> send = new ArrayList<Submission>(subs.size());
+		for (Submission sub : subs) {
+			if (sub.op == BeeminderDbAdapter.OP_CREATE) {
+				// Relinked after the ping
+				if (updated_at > sub.time) {
+					mBeeDB.deleteOutboxOp(sub.opId);
+					continue;
+				}
+			} else if (sub.op == BeeminderDbAdapter.OP_UPDATE) {
+				// Sends the current value of the point, whatever it was when
+				// the update was queued
+				Cursor pc = mBeeDB.fetchPoint(sub.pointId);
+				boolean found = pc.getCount() > 0;
+				if (found) {
+					sub.replaced = pc.getString(1);
+					sub.value = pc.getDouble(2);
+					sub.time = pc.getLong(3);
+					sub.comment = pc.getString(4);
+				}
+				pc.close();
+				if (!found) {
+					mBeeDB.deleteOutboxOp(sub.opId);
+					continue;
+				}
+				if (sub.replaced.startsWith(BeeminderDbAdapter.LOCAL_REQID)) sub.replaced = null;
+			} else if (sub.op == BeeminderDbAdapter.OP_DELETE) {
+				Cursor pc = mBeeDB.fetchPoint(sub.pointId);
+				if (pc.getCount() > 0) sub.requestId = pc.getString(1);
+				pc.close();
+				// Already removed, e.g. along with its goal
+				if (sub.requestId == null) {
+					mBeeDB.deleteOutboxOp(sub.opId);
+					continue;
+				}
+				// Never made it to Beeminder
+				if (sub.requestId.startsWith(BeeminderDbAdapter.LOCAL_REQID)) {
+					mBeeDB.removePoint(sub.pointId);
+					mBeeDB.deleteOutboxOp(sub.opId);
+					continue;
+				}
+			}
+			send.add(sub);
+		}
+		if (send.isEmpty()) return;
+
+		if (openGoal()) {
+			if (LOCAL_LOGV) Log.v(TAG, "submitGoal: Sending " + send.size() + " operations for " + mGoalUser + "/"
+					+ mGoalSlug);
+			mSubmitSem.drainPermits();
+			int sent = 0;
+			for (Submission sub : send) {
+				try {
+					// Holding the lock keeps the callback from looking for the
+					// submission before it is registered
+					synchronized (mSubmissions) {
+						int id;
+						if (sub.op == BeeminderDbAdapter.OP_CREATE || sub.op == BeeminderDbAdapter.OP_UPDATE) id = mBeeminder
+								.createPoint(sub.value, sub.time, sub.comment);
+						else id = mBeeminder.deletePoint(sub.requestId);
+						mSubmissions.put(id, sub);
 					}
+					sent++;
+				} catch (Session.SessionException e) {
+					Log.w(TAG, "submitGoal: Error submitting operation. msg=" + e.getMessage());
+					break;
 				}
+			}
+			// Wait for the answers, giving each one the full timeout
+			try {
+				for (int i = 0; i < sent; i++) {
+					if (!mSubmitSem.tryAcquire(1, SEMAPHORE_TIMEOUT, TimeUnit.SECONDS)) break;
+				}
+			} catch (InterruptedException e) {
+				Log.w(TAG, "submitGoal: interrupted. msg=" + e.getMessage());
+			}
+			synchronized (mSubmissions) {
+				// Answers arriving after this are ignored, the operations are
+				// retried
+				mSubmissions.clear();
+			}
+		}
 
-				mPingDB.close();
-				mBeeDB.close();
+		for (Submission sub : send)
+			finishSubmission(sub, now);
+	}
+
+	/**
+	 * Records the result of a sent operation: stores or removes the point and
+	 * drops the operation if it succeeded, otherwise schedules a retry.
+	 */
+	private void finishSubmission(Submission sub, long now) {
+		boolean done = sub.answered && !sub.failed;
+		if (done) {
+			if (sub.op == BeeminderDbAdapter.OP_CREATE) {
+				long ptid = mBeeDB.createPoint(sub.requestId, sub.value, sub.time, sub.comment, sub.goalId);
+				try {
+					mBeeDB.newPointPing(ptid, sub.pingId);
+				} catch (Exception e) {
+					Log.w(TAG, "finishSubmission: Could not create pair for point=" + ptid + ", ping=" + sub.pingId
+							+ " for goal " + sub.goalId);
+				}
+			} else if (sub.op == BeeminderDbAdapter.OP_UPDATE) {
+				// The new point is in place, the one it replaces can go
+				mBeeDB.updatePointRequest(sub.pointId, sub.requestId);
+				if (sub.replaced != null) mBeeDB.queuePointRetract(sub.pingId, sub.goalId, sub.replaced);
+			} else if (sub.op == BeeminderDbAdapter.OP_DELETE) {
+				mBeeDB.removePoint(sub.pointId);
 			}
+		} else if ((sub.op == BeeminderDbAdapter.OP_DELETE || sub.op == BeeminderDbAdapter.OP_RETRACT)
+				&& sub.attempts >= MAX_ATTEMPTS - 1 && sub.error == Session.ErrorType.ERROR_NOTFOUND) {
+			// We give up on point deletion after a number of attempts with
+			// NOTFOUND as a result
+			Log.w(TAG, "finishSubmission: Giving up on delete for " + mGoalUser + "/" + mGoalSlug);
+			if (sub.op == BeeminderDbAdapter.OP_DELETE) mBeeDB.removePoint(sub.pointId);
+			done = true;
+		}
+
+		if (done) {
+			mBeeDB.deleteOutboxOp(sub.opId);
+		} else if (sub.op == BeeminderDbAdapter.OP_RETRACT && sub.attempts + 1 >= MAX_ATTEMPTS) {
+			// Dropping a retract would leave the replaced point next to its
+			// replacement on Beeminder, and nothing could be resubmitted to
+			// fix that, so it is retried at the longest delay for as long as
+			// it takes
+			Log.w(TAG, "finishSubmission: Still retracting " + sub.requestId + " for ping " + sub.pingId);
+			mBeeDB.rescheduleOutboxOp(sub.opId, MAX_ATTEMPTS - 1, now + RETRY_MAX);
+		} else if (sub.attempts + 1 >= MAX_ATTEMPTS) {
+			Log.w(TAG, "finishSubmission: Exceeded maximum attempts for ping " + sub.pingId);
+			mBeeDB.deleteOutboxOp(sub.opId);
+			notifyForResubmit(sub.pingId);
 		} else {
-			Log.w(TAG, "onHandleIntent: No intent received!");
+			mBeeDB.rescheduleOutboxOp(sub.opId, sub.attempts + 1, now + retryDelay(sub.attempts + 1));
+		}
+	}
+
+	/**
+	 * Returns the delay in seconds before attempt number attempts + 1,
+	 * doubling with every attempt up to RETRY_MAX. Half of the delay is
+	 * random, so that retries do not all line up.
+	 */
+	private static long retryDelay(int attempts) {
+		long delay = Math.min((long) RETRY_BASE << Math.min(attempts - 1, 20), RETRY_MAX);
+		return delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+	}
+
+	/**
+	 * Sets the single alarm that drains the outbox to go off at the given
+	 * time, or cancels it if due is -1. The alarm does not wake the device.
+	 */
+	private void scheduleDrain(long due) {
+		PendingIntent sender = drainIntent(getApplicationContext());
+		AlarmManager am = (AlarmManager) getSystemService(ALARM_SERVICE);
+		if (due < 0) {
+			am.cancel(sender);
 			return;
 		}
+		if (LOCAL_LOGV) Log.v(TAG, "scheduleDrain: Draining outbox at " + due);
+		am.set(AlarmManager.RTC, due * 1000, sender);
+	}
+
+	private static PendingIntent drainIntent(Context context) {
+		Intent intent = new Intent(context, BeeminderService.class);
+		intent.setAction(ACTION_DRAIN);
+		return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	/**
+	 * Sets the drain alarm again from the outbox. Alarms are cleared by a
+	 * reboot or an update of the app while the outbox is not, so TPStartUp
+	 * calls this for those two broadcasts.
+	 */
+	public static void restoreDrain(Context context) {
+		Intent intent = new Intent(context, BeeminderService.class);
+		intent.setAction(ACTION_RESCHEDULE);
+		context.startService(intent);
 	}
 
 	public BeeminderService() {
@@ -0,0 +1,208 @@
+package bsoule.tagtime;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/*
+ * Process-wide cache of the Beeminder submission state of pings, as shown by
+ * the bee icons in ViewLog. States are computed for whole batches of pings
+ * with a few set-based queries by prefetch(), which is meant to run off the
+ * UI thread, so that binding list rows only needs get().
+ *
+ * A ping is SUBMITTED if it has a point for every goal it should have been
+ * submitted to, PENDING if the number of points does not match, and NONE if
+ * it belongs to no goal. A ping belongs to a goal if it has one of the goal's
+ * tags and the goal was last updated before the ping.
+ *
+ * The database adapters invalidate entries write-through whenever taggings,
+ * point pings or goals change.
+ */
+public class BeeminderStatus {
+	private static final String TAG = "BeeminderStatus";
+	private static final boolean LOCAL_LOGV = false && !TagTime.DISABLE_LOGV;
+
+	public static final byte UNKNOWN = -1;
+	public static final byte NONE = 0;
+	public static final byte SUBMITTED = 1;
+	public static final byte PENDING = 2;
+
+	// Maximum number of ping ids in a single IN (...) list
+	private static final int CHUNK = 200;
+
+	public interface OnInvalidateListener {
+		/**
+		 * Called on the thread that made the change, with the id of the
+		 * affected ping or -1 if all states were dropped.
+		 */
+		void onInvalidate(long pingId);
+	}
+
+	private static final BeeminderStatus sInstance = new BeeminderStatus();
+
+	private final LongByteMap mStates = new LongByteMap(1024);
+	// Goals by tag id as interleaved (goal id, updated at) pairs, null until
+	// loaded by the first prefetch after a goal change
+	private HashMap<Long, long[]> mGoalsByTag = null;
+	// Incremented by every invalidation, so that prefetches that overlapped
+	// with a change do not store stale states
+	private int mGeneration = 0;
+	private OnInvalidateListener mListener = null;
+
+	public static BeeminderStatus getInstance() {
+		return sInstance;
+	}
+
+	private BeeminderStatus() {
+	}
+
+	/** Returns the cached state of the ping, or UNKNOWN. */
+	public synchronized byte get(long pingId) {
+		return mStates.get(pingId, UNKNOWN);
+	}
+
+	public synchronized void setOnInvalidateListener(OnInvalidateListener listener) {
+		mListener = listener;
+	}
+
+	/** Forgets the state of a single ping after its tags or points changed. */
+	public void invalidate(long pingId) {
+		OnInvalidateListener listener;
+		synchronized (this) {
+			mGeneration++;
+			mStates.remove(pingId);
+			listener = mListener;
+		}
+		if (listener != null) listener.onInvalidate(pingId);
+	}
+
+	/** Forgets all states and goals, used whenever goals change. */
+	public void invalidateAll() {
+		OnInvalidateListener listener;
+		synchronized (this) {
+			mGeneration++;
+			mStates.clear();
+			mGoalsByTag = null;
+			listener = mListener;
+		}
+		if (listener != null) listener.onInvalidate(-1);
+	}
+
+	/**
+	 * Computes and caches the states of the given pings.
+	 *
+	 * @param pingIds
+	 *            Ids of the pings.
+	 * @param pingTimes
+	 *            Ping times, parallel to pingIds.
+	 * @return false if the data changed while computing, in which case nothing
+	 *         was cached.
+	 */
+	public boolean prefetch(PingsDbAdapter pdb, BeeminderDbAdapter bdb, long[] pingIds, long[] pingTimes) {
+		int generation;
+		HashMap<Long, long[]> goals;
+		synchronized (this) {
+			generation = mGeneration;
+			goals = mGoalsByTag;
+		}
+		if (goals == null) goals = loadGoals(bdb);
+
+		byte[] states = new byte[pingIds.length];
+		for (int start = 0; start < pingIds.length; start += CHUNK) {
+			int n = Math.min(CHUNK, pingIds.length - start);
+			long[] ids = new long[n];
+			System.arraycopy(pingIds, start, ids, 0, n);
+			HashMap<Long, Integer> pos = new HashMap<Long, Integer>(n * 2);
+			for (int i = 0; i < n; i++)
+				pos.put(ids[i], start + i);
+
+			int[] numPoints = new int[n];
+			Cursor c = bdb.countPointPings(ids);
+			try {
+				c.moveToFirst();
+				while (!c.isAfterLast()) {
+					Integer i = pos.get(c.getLong(0));
+					if (i != null) numPoints[i - start] = c.getInt(1);
+					c.moveToNext();
+				}
+			} finally {
+				c.close();
+			}
+
+			int[] numGoals = new int[n];
+			Set<Long> pingGoals = new HashSet<Long>();
+			long current = -1;
+			c = pdb.fetchTaggings(ids);
+			try {
+				int pidIdx = c.getColumnIndex(PingsDbAdapter.KEY_PID);
+				int tidIdx = c.getColumnIndex(PingsDbAdapter.KEY_TID);
+				c.moveToFirst();
+				while (!c.isAfterLast()) {
+					long pid = c.getLong(pidIdx);
+					Integer i = pos.get(pid);
+					if (pid != current) pingGoals.clear();
+					current = pid;
+					long[] tagGoals = goals.get(c.getLong(tidIdx));
+					if (i != null && tagGoals != null) {
+						for (int g = 0; g < tagGoals.length; g += 2) {
+							// Skip goals that were updated after the ping
+							if (tagGoals[g + 1] < pingTimes[i]) pingGoals.add(tagGoals[g]);
+						}
+						numGoals[i - start] = pingGoals.size();
+					}
+					c.moveToNext();
+				}
+			} finally {
+				c.close();
+			}
+
+			for (int i = 0; i < n; i++) {
+				// TODO: We should check whether existing points and goals match
+				// exactly instead of just checking the count
+				if (numPoints[i] != numGoals[i]) states[start + i] = PENDING;
+				else if (numPoints[i] != 0) states[start + i] = SUBMITTED;
+				else states[start + i] = NONE;
+			}
+		}
+
+		synchronized (this) {
+			if (generation != mGeneration) {
+				if (LOCAL_LOGV) Log.v(TAG, "prefetch: Discarding stale states");
+				return false;
+			}
+			if (mGoalsByTag == null) mGoalsByTag = goals;
+			for (int i = 0; i < pingIds.length; i++)
+				mStates.put(pingIds[i], states[i]);
+		}
+		return true;
+	}
+
+	private HashMap<Long, long[]> loadGoals(BeeminderDbAdapter bdb) {
+		HashMap<Long, long[]> goals = new HashMap<Long, long[]>();
+		Cursor c = bdb.fetchGoalTagTimes();
+		try {
+			c.moveToFirst();
+			while (!c.isAfterLast()) {
+				long tid = c.getLong(0);
+				long[] prev = goals.get(tid);
+				long[] next;
+				if (prev == null) {
+					next = new long[2];
+				} else {
+					next = new long[prev.length + 2];
+					System.arraycopy(prev, 0, next, 0, prev.length);
+				}
+				next[next.length - 2] = c.getLong(1);
+				next[next.length - 1] = c.getLong(2);
+				goals.put(tid, next);
+				c.moveToNext();
+			}
+		} finally {
+			c.close();
+		}
+		return goals;
+	}
+}
@@ -134,14 +134,26 @@ public class EditGoal extends SherlockActivity {
 	private void updateGoal() {
 		if (mUsername == null || !mChanged) return;
 
+		// Changed tags only add points for pings that now match, removing a
+		// tag does not delete what it submitted before
+		boolean createOnly = mRowId >= 0;
 		if (mRowId >= 0) {
 			// Called on an existing goal, update
 			mBeeminderDB.updateGoal(mRowId, mUsername, mGoalSlug, mToken);
 			mBeeminderDB.updateGoalTags(mRowId, new ArrayList<String>(Arrays.asList(mTags)));
 		} else {
 			// No existing goals, attempt to create
-			mBeeminderDB.createGoal(mUsername, mGoalSlug, mToken, new ArrayList<String>(Arrays.asList(mTags)));
+			mRowId = mBeeminderDB.createGoal(mUsername, mGoalSlug, mToken,
+					new ArrayList<String>(Arrays.asList(mTags)));
 		}
+
+		// Bring the goal's points in line with its tags. After relinking this
+		// resyncs everything since the goal was first linked.
+		Intent intent = new Intent(this, BeeminderService.class);
+		intent.setAction(BeeminderService.ACTION_RECONCILE);
+		intent.putExtra(BeeminderService.KEY_GID, mRowId.longValue());
+		intent.putExtra(BeeminderService.KEY_CREATE_ONLY, createOnly);
+		startService(intent);
 	}
 
 	ActionBar mAction;
@@ -4,8 +4,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import android.app.NotificationManager;
 import android.content.Context;
@@ -17,17 +19,16 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
-import android.view.Gravity;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.ViewGroup.LayoutParams;
 import android.view.ViewTreeObserver;
 import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
-import android.widget.ScrollView;
+import android.widget.ListView;
+import android.widget.MultiAutoCompleteTextView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -60,32 +61,48 @@ public class EditPing extends SherlockActivity {
 	private static final boolean LOCAL_LOGV = false && !TagTime.DISABLE_LOGV;
 
 	public static final String KEY_TAGS = "tags";
+	// Pings whose tags were changed, with their old and new tag strings.
+	// Passed along when moving to the previous or next ping so that the
+	// activity that started the first EditPing gets all of them.
+	public static final String KEY_EDITED_IDS = "edited_ids";
+	public static final String KEY_EDITED_OLDTAGS = "edited_oldtags";
+	public static final String KEY_EDITED_TAGS = "edited_tags";
 
 	private PingsDbAdapter mPingsDB;
-	private Cursor mTagsCursor;
+	private TaggingWriter mWriter;
 
 	private Button mModeButton = null;
-	private ScrollView mTagScroll = null;
-	private LinearLayout mTagParent;
+	private ListView mTagScroll = null;
+	private TagGridAdapter mTagGrid = null;
+	private View mSuggestScroll = null;
+	private LinearLayout mSuggestions = null;
+	// Ids of the selected tags, kept in sync with mCurrentTags by the toggles
+	private Set<Long> mSelectedTids = new HashSet<Long>();
 	private EditText mTagsEdit = null;
 	private TextView mEditTitle = null;
 	private TextView mPingTitle;
 	private TextView mPingGap;
 
 	private Long mRowId;
+	// Ids of the pings before and after this one in time, -1 if none
+	private long mPrevId = -1;
+	private long mNextId = -1;
 	private int mGap;
 	private Long mPingUTC;
-	private int FIXTAGS = R.layout.tagtime_editping;
-	private ViewTreeObserver mVto;
 
 	private boolean landscape;
 	private boolean editmode; // false: tags, true: edittext
 
 	private List<String> mCurrentTags;
 	private String mCurrentTagString = "";
+	// Tags of the ping before this activity changed them
+	private String mOriginalTagString = null;
 
 	private String mOrdering;
 
+	// Number of suggested tags shown above the tag list
+	private static final int MAX_SUGGESTIONS = 6;
+
 	private void showSoftKeyboard() {
 		if (getCurrentFocus() != null && getCurrentFocus() instanceof EditText) {
 			InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
@@ -107,6 +124,7 @@ public class EditPing extends SherlockActivity {
 
 		if (editmode) {
 			mTagScroll.setVisibility(View.GONE);
+			mSuggestScroll.setVisibility(View.GONE);
 			mTagsEdit.setVisibility(View.VISIBLE);
 			if (mModeButton != null) mModeButton.setText(getText(R.string.editping_buttons));
 			mEditTitle.setText(getText(R.string.editping_tags_land));
@@ -142,11 +160,13 @@ public class EditPing extends SherlockActivity {
 		View v = findViewById(R.id.editping_tagedit_landscape);
 		if (v == null) {
 			landscape = false;
-			mTagScroll = (ScrollView) findViewById(R.id.editping_tagselect);
+			mTagScroll = (ListView) findViewById(R.id.editping_tagselect);
 			mTagsEdit = (EditText) findViewById(R.id.editping_tagedit_portrait);
 
-			mTagParent = (LinearLayout) findViewById(R.id.lintags);
-			mVto = mTagParent.getViewTreeObserver();
+			mTagGrid = new TagGridAdapter(this, mSelectedTids, mTogListener);
+			mTagScroll.setAdapter(mTagGrid);
+			mSuggestScroll = findViewById(R.id.editping_suggest_scroll);
+			mSuggestions = (LinearLayout) findViewById(R.id.editping_suggestions);
 		} else {
 			landscape = true;
 			mTagsEdit = (EditText) v;
@@ -161,7 +181,19 @@ public class EditPing extends SherlockActivity {
 
 		mPingsDB = new PingsDbAdapter(this);
 		mPingsDB.open();
-		if (mRowId >= 0 && mPingsDB.fetchPing(mRowId).getCount() == 0) {
+		mWriter = TaggingWriter.getInstance(this);
+
+		// Complete tags typed into the text field from the existing ones
+		MultiAutoCompleteTextView completing = (MultiAutoCompleteTextView) mTagsEdit;
+		completing.setAdapter(new TagCompletionAdapter(this, mPingsDB));
+		completing.setTokenizer(new TagCompletionAdapter.SpaceTokenizer());
+		boolean exists = true;
+		if (mRowId >= 0) {
+			Cursor ping = mPingsDB.fetchPing(mRowId);
+			exists = ping.getCount() > 0;
+			ping.close();
+		}
+		if (!exists) {
 			Toast.makeText(this, getText(R.string.editping_noping), Toast.LENGTH_SHORT).show();
 			finish();
 			mPingsDB.close();
@@ -179,24 +211,23 @@ public class EditPing extends SherlockActivity {
 			mPingTitle.setVisibility(View.GONE);
 			mEditTitle.setTextSize(TypedValue.COMPLEX_UNIT_DIP, 18);
 		} else {
-			if (mPingsDB.fetchPing(mRowId + 1).getCount() == 0) nextButton.setVisibility(View.INVISIBLE);
-			if (mPingsDB.fetchPing(mRowId - 1).getCount() == 0) prevButton.setVisibility(View.INVISIBLE);
+			long[] neighbors = mPingsDB.fetchNeighborPings(mRowId);
+			mPrevId = neighbors[0];
+			mNextId = neighbors[1];
+			if (mNextId < 0) nextButton.setVisibility(View.INVISIBLE);
+			if (mPrevId < 0) prevButton.setVisibility(View.INVISIBLE);
 		}
 
 		// This is the sort ordering preference for the tag list
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		mOrdering = prefs.getString("sortOrderPref", "FREQ");
 
-		if (LOCAL_LOGV) Log.w(TAG, "Getting Tags with order: " + mOrdering);
-
-		mTagsCursor = mPingsDB.fetchAllTags(mOrdering);
-		startManagingCursor(mTagsCursor);
-
 		String savedtags = null;
 		if (savedInstanceState != null) {
 			// Check for previously saved tag list to handle orientation change
 			savedtags = savedInstanceState.getString("editping_tagsave").trim();
 			editmode = savedInstanceState.getBoolean("editping_editmode");
+			mOriginalTagString = savedInstanceState.getString("editping_origtags");
 		} else {
 			// Otherwise, look for tag information in the incoming intent
 			Bundle extras = getIntent().getExtras();
@@ -212,11 +243,7 @@ public class EditPing extends SherlockActivity {
 		Button confirm = (Button) findViewById(R.id.confirm);
 		confirm.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
-				if (landscape || editmode) {
-					String[] newtagstrings = mTagsEdit.getText().toString().trim().split("\\s+");
-					mCurrentTags = new ArrayList<String>(Arrays.asList(newtagstrings));
-					mCurrentTagString = TextUtils.join(" ", mCurrentTags);
-				}
+				readTagEdit();
 				finish();
 			}
 		});
@@ -227,8 +254,6 @@ public class EditPing extends SherlockActivity {
 			mModeButton.setOnClickListener(new OnClickListener() {
 				public void onClick(View v) {
 					saveState();
-					mTagsCursor = mPingsDB.fetchAllTags(mOrdering);
-					startManagingCursor(mTagsCursor);
 					editmode = !editmode;
 					setEditMode();
 					populateFields();
@@ -260,9 +285,12 @@ public class EditPing extends SherlockActivity {
 					mPingGap.setText(getText(R.string.editping_nogap));
 				}
 				
-				// get tags from the database
-				mCurrentTags = mPingsDB.fetchTagNamesForPing(mRowId);
+				// get tags from the database, unless newer ones are still
+				// waiting to be written
+				mCurrentTags = mWriter.getPending(mRowId);
+				if (mCurrentTags == null) mCurrentTags = mPingsDB.fetchTagNamesForPing(mRowId);
 				mCurrentTagString = TextUtils.join(" ", mCurrentTags);
+				if (mOriginalTagString == null) mOriginalTagString = mCurrentTagString;
 			} catch (Exception e) {
 				Log.i(TAG, "caught an exception in populateFields():");
 				Log.i(TAG, "    " + e.getLocalizedMessage());
@@ -278,6 +306,7 @@ public class EditPing extends SherlockActivity {
 
 		if (!landscape && !editmode) {
 			refreshTags();
+			refreshSuggestions();
 		}
 		if (mCurrentTags != null) {
 			mTagsEdit.setText(TextUtils.join(" ", mCurrentTags) + " ");
@@ -287,77 +316,151 @@ public class EditPing extends SherlockActivity {
 
 	/**
 	 * This method refreshes the list of tag buttons based on the contents of
-	 * the tag database.
+	 * the tag database. Tags are read into arrays in one pass, the grid only
+	 * creates buttons for the rows on screen.
 	 */
 	private void refreshTags() {
-		mTagParent.removeAllViews();
-		mTagsCursor.moveToFirst();
-
-		LinearLayout ll = new LinearLayout(this);
-		ll.setId(FIXTAGS);
-		ll.setOrientation(1);
-		ll.setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT));
-		while (!mTagsCursor.isAfterLast()) {
-			String tag = mTagsCursor.getString(mTagsCursor.getColumnIndex(PingsDbAdapter.KEY_TAG));
-			long id = mTagsCursor.getLong(mTagsCursor.getColumnIndex(PingsDbAdapter.KEY_ROWID));
-			boolean on = false;
-			if (mCurrentTags != null) on = mCurrentTags.contains(tag);
-			TagToggle tog = new TagToggle(this, tag, id, on);
-			tog.setOnClickListener(mTogListener);
-			ll.addView(tog);
-
-			mTagsCursor.moveToNext();
+		long[] ids;
+		String[] names;
+		Cursor c = mPingsDB.fetchAllTags(mOrdering);
+		try {
+			int idIdx = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
+			int tagIdx = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+			ids = new long[c.getCount()];
+			names = new String[ids.length];
+			int i = 0;
+			c.moveToFirst();
+			while (!c.isAfterLast() && i < ids.length) {
+				ids[i] = c.getLong(idIdx);
+				names[i] = c.getString(tagIdx);
+				i++;
+				c.moveToNext();
+			}
+		} finally {
+			c.close();
 		}
-		mTagParent.addView(ll);
-		mVto = mTagParent.getViewTreeObserver();
-		mVto.addOnPreDrawListener(mDrawListener);
+
+		Set<String> current = new HashSet<String>();
+		if (mCurrentTags != null) current.addAll(mCurrentTags);
+		mSelectedTids.clear();
+		for (int i = 0; i < ids.length; i++) {
+			if (current.contains(names[i])) mSelectedTids.add(ids[i]);
+		}
+		mTagGrid.setTags(ids, names);
+		mTagScroll.getViewTreeObserver().addOnPreDrawListener(mDrawListener);
 	}
 
 	/**
-	 * This method fixes the layout of the tag buttons to make them fit into the
-	 * screen width
+	 * Shows toggles for the tags suggested for this ping, from the previous
+	 * ping and from what is usually tagged at this hour of the week.
 	 */
-	private void fixTags() {
-		LinearLayout ll = (LinearLayout) mTagParent.getChildAt(0);
-		mTagParent.removeAllViews();
-		int pwidth = mTagParent.getWidth() - 15;
-		int twidth = 0;
-		LinearLayout tagrow = new LinearLayout(this);
-		tagrow.setOrientation(0);
-		tagrow.setGravity(Gravity.CENTER_HORIZONTAL);
-		tagrow.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-		while (ll.getChildCount() > 0) {
-			View tog = ll.getChildAt(0);
-			ll.removeViewAt(0);
-			int leftover = pwidth - twidth;
-			if (tog.getWidth() > leftover) {
-				mTagParent.addView(tagrow);
-				tagrow = new LinearLayout(this);// .removeAllViews();
-				tagrow.setOrientation(0);
-				tagrow.setGravity(Gravity.CENTER_HORIZONTAL);
-				tagrow.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-				twidth = 0;
+	private void refreshSuggestions() {
+		mSuggestions.removeAllViews();
+		if (mRowId >= 0 && mPingUTC != null) {
+			// The previous ping was likely tagged just before this one
+			List<Long> previous = null;
+			List<String> pending = (mPrevId >= 0) ? mWriter.getPending(mPrevId) : null;
+			if (pending != null) {
+				previous = new ArrayList<Long>();
+				for (String t : pending) {
+					long tid = mPingsDB.getTID(t);
+					if (tid != -1) previous.add(tid);
+				}
+			}
+			for (long tid : mPingsDB.suggestTags(mPingUTC, previous, MAX_SUGGESTIONS)) {
+				String tag = mPingsDB.getTagName(tid);
+				if (tag.length() == 0) continue;
+				TagToggle tog = new TagToggle(this, tag, tid, mSelectedTids.contains(tid));
+				tog.setOnClickListener(mTogListener);
+				mSuggestions.addView(tog);
 			}
-			tagrow.addView(tog);
-			twidth += tog.getWidth();
 		}
-		mTagParent.addView(tagrow);
+		mSuggestScroll.setVisibility((mSuggestions.getChildCount() > 0) ? View.VISIBLE : View.GONE);
+	}
+
+	/**
+	 * This method fixes the layout of the tag buttons to make them fit into the
+	 * screen width, once the width of the list is known.
+	 */
+	private void fixTags() {
+		int pwidth = mTagScroll.getWidth() - mTagScroll.getPaddingLeft() - mTagScroll.getPaddingRight() - 15;
+		mTagGrid.setRowWidth(pwidth);
 	}
 
 	public void handlePrev(View v) {
+		if (mPrevId < 0) return;
+		readTagEdit();
 		Intent i = new Intent(this, EditPing.class);
-		i.putExtra(PingsDbAdapter.KEY_ROWID, mRowId - 1);
+		i.putExtra(PingsDbAdapter.KEY_ROWID, mPrevId);
+		putEdits(i);
+		i.addFlags(Intent.FLAG_ACTIVITY_FORWARD_RESULT);
 		startActivity(i);
 		finish();
 	}
 
 	public void handleNext(View v) {
+		if (mNextId < 0) return;
+		readTagEdit();
 		Intent i = new Intent(this, EditPing.class);
-		i.putExtra(PingsDbAdapter.KEY_ROWID, mRowId + 1);
+		i.putExtra(PingsDbAdapter.KEY_ROWID, mNextId);
+		putEdits(i);
+		i.addFlags(Intent.FLAG_ACTIVITY_FORWARD_RESULT);
 		startActivity(i);
 		finish();
 	}
 
+	/** Takes the current tags from the text field when it is in use. */
+	private void readTagEdit() {
+		if (landscape || editmode) {
+			String[] newtagstrings = mTagsEdit.getText().toString().trim().split("\\s+");
+			mCurrentTags = new ArrayList<String>(Arrays.asList(newtagstrings));
+			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
+		}
+	}
+
+	/**
+	 * Adds the pings edited so far to the given intent: the ones passed in by
+	 * the previous EditPing, followed by this ping if its tags changed.
+	 */
+	private void putEdits(Intent intent) {
+		long[] ids = getIntent().getLongArrayExtra(KEY_EDITED_IDS);
+		String[] oldtags = getIntent().getStringArrayExtra(KEY_EDITED_OLDTAGS);
+		String[] newtags = getIntent().getStringArrayExtra(KEY_EDITED_TAGS);
+		if (ids == null || oldtags == null || newtags == null) {
+			ids = new long[0];
+			oldtags = new String[0];
+			newtags = new String[0];
+		}
+		boolean changed = mRowId >= 0 && mCurrentTags != null && mOriginalTagString != null
+				&& !tagSet(mOriginalTagString).equals(tagSet(mCurrentTagString));
+		if (changed) {
+			int n = ids.length;
+			long[] i2 = new long[n + 1];
+			String[] o2 = new String[n + 1];
+			String[] t2 = new String[n + 1];
+			System.arraycopy(ids, 0, i2, 0, n);
+			System.arraycopy(oldtags, 0, o2, 0, n);
+			System.arraycopy(newtags, 0, t2, 0, n);
+			i2[n] = mRowId;
+			o2[n] = mOriginalTagString;
+			t2[n] = mCurrentTagString.trim();
+			ids = i2;
+			oldtags = o2;
+			newtags = t2;
+		}
+		intent.putExtra(KEY_EDITED_IDS, ids);
+		intent.putExtra(KEY_EDITED_OLDTAGS, oldtags);
+		intent.putExtra(KEY_EDITED_TAGS, newtags);
+	}
+
+	private static Set<String> tagSet(String tags) {
+		Set<String> set = new HashSet<String>();
+		for (String t : tags.trim().split("\\s+")) {
+			if (t.length() > 0) set.add(t);
+		}
+		return set;
+	}
+
 	@Override
 	protected void onPause() {
 		if (LOCAL_LOGV) Log.i(TAG, "onPause()");
@@ -370,11 +473,8 @@ public class EditPing extends SherlockActivity {
 		super.onResume();
 		if (findViewById(R.id.editping_tagedit_landscape) == null) {
 			landscape = false;
-			mTagScroll = (ScrollView) findViewById(R.id.editping_tagselect);
+			mTagScroll = (ListView) findViewById(R.id.editping_tagselect);
 			mTagsEdit = (EditText) findViewById(R.id.editping_tagedit_portrait);
-
-			mTagParent = (LinearLayout) findViewById(R.id.lintags);
-			mVto = mTagParent.getViewTreeObserver();
 			if (LOCAL_LOGV) Log.v(TAG, "onResume: PORTRAIT");
 		} else {
 			landscape = true;
@@ -396,7 +496,7 @@ public class EditPing extends SherlockActivity {
 			String[] newtagstrings = mTagsEdit.getText().toString().trim().split("\\s+");
 			mCurrentTags = new ArrayList<String>(Arrays.asList(newtagstrings));
 			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
-			if (mRowId >= 0) mPingsDB.updateTaggings(mRowId, Arrays.asList(newtagstrings));
+			if (mRowId >= 0) writeTags();
 			else {
 				for (String t : mCurrentTags) {
 					if (t.trim().length() == 0) continue;
@@ -407,7 +507,7 @@ public class EditPing extends SherlockActivity {
 			}
 		} else {
 			if (mRowId >= 0) {
-				mPingsDB.updateTaggings(mRowId, mCurrentTags);
+				writeTags();
 			} else {
 				// Nothing, onSaveInstanceState will take care of saving the
 				// current tags for orientation change
@@ -415,6 +515,17 @@ public class EditPing extends SherlockActivity {
 		}
 	}
 
+	/**
+	 * Queues the current tags of the ping for writing. Tags that do not exist
+	 * yet are created right away, so that the tag list shows them.
+	 */
+	private void writeTags() {
+		for (String t : mCurrentTags) {
+			if (t.trim().length() > 0 && mPingsDB.getTID(t) == -1) mPingsDB.getOrMakeNewTID(t);
+		}
+		mWriter.submit(mRowId, mCurrentTags);
+	}
+
 	@Override
 	public void finish() {
 		if (LOCAL_LOGV) Log.i(TAG, "finish()");
@@ -425,6 +536,7 @@ public class EditPing extends SherlockActivity {
 			// Update result intent
 			Intent resultIntent = new Intent();
 			resultIntent.putExtra(KEY_TAGS, mCurrentTagString);
+			putEdits(resultIntent);
 			setResult(RESULT_OK, resultIntent);
 
 			// Submit datapoint associated with the ping
@@ -432,7 +544,7 @@ public class EditPing extends SherlockActivity {
 				Intent intent = new Intent(this, BeeminderService.class);
 				intent.setAction(BeeminderService.ACTION_EDITPING);
 				intent.putExtra(BeeminderService.KEY_PID, mRowId);
-				intent.putExtra(BeeminderService.KEY_OLDTAGS, "");
+				intent.putExtra(BeeminderService.KEY_OLDTAGS, (mOriginalTagString != null) ? mOriginalTagString : "");
 				intent.putExtra(BeeminderService.KEY_NEWTAGS, mCurrentTagString);
 				this.startService(intent);
 			}
@@ -447,6 +559,7 @@ public class EditPing extends SherlockActivity {
 			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
 			outState.putString("editping_tagsave", mCurrentTagString);
 			outState.putBoolean("editping_editmode", editmode);
+			outState.putString("editping_origtags", mOriginalTagString);
 		}
 	}
 
@@ -460,7 +573,7 @@ public class EditPing extends SherlockActivity {
 	private OnPreDrawListener mDrawListener = new OnPreDrawListener() {
 		public boolean onPreDraw() {
 			fixTags();
-			ViewTreeObserver vto = mTagParent.getViewTreeObserver();
+			ViewTreeObserver vto = mTagScroll.getViewTreeObserver();
 			vto.removeOnPreDrawListener(mDrawListener);
 			return true;
 		}
@@ -472,11 +585,20 @@ public class EditPing extends SherlockActivity {
 			String tag = tog.getText().toString();
 			if (tog.isSelected()) {
 				if (LOCAL_LOGV) Log.v(TAG, "OnClickListener: Toggling " + tag);
+				mSelectedTids.add(tog.getTId());
 				mCurrentTags.add(tag);
 			} else {
+				mSelectedTids.remove(tog.getTId());
 				mCurrentTags.remove(tag);
 			}
 			mCurrentTagString = TextUtils.join(" ", mCurrentTags);
+
+			// The same tag may be shown both as a suggestion and in the list
+			for (int i = 0; i < mSuggestions.getChildCount(); i++) {
+				TagToggle s = (TagToggle) mSuggestions.getChildAt(i);
+				s.setChecked(mSelectedTids.contains(s.getTId()));
+			}
+			mTagGrid.notifyDataSetChanged();
 		}
 
 	};
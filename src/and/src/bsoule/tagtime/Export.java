@@ -1,22 +1,22 @@
 package bsoule.tagtime;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Locale;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
@@ -48,6 +48,10 @@ public class Export extends SherlockActivity {
 	
 	SharedPreferences mPrefs;
 	ProgressDialog mProgress;
+	// The running export, if any. Kept across activity instances so that a
+	// rotation or coming back to the screen finds it instead of starting a
+	// second one on the same file. Only touched on the UI thread.
+	private static ExportTask sExportTask = null;
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -63,14 +67,18 @@ public class Export extends SherlockActivity {
 		mBeeDb = new BeeminderDbAdapter(this);
 		mBeeDb.open();
 		mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+
+		if (sExportTask != null) {
+			sExportTask.attach(this);
+			progressDialog().show();
+			sExportTask.showProgress();
+		}
 		
 		Button doSD = (Button) findViewById(R.id.export_sd);
 		doSD.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
 				if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-					//showDialog(DIALOG_PROGRESS);
-					writeFile(Environment.getExternalStorageDirectory(), FNAME, getLogData().toString());
-					showDialog(DIALOG_DONE);
+					startExport(new File(Environment.getExternalStorageDirectory(), FNAME), false);
 				} else {
 					showDialog(DIALOG_NOMOUNT);
 				}
@@ -79,7 +87,7 @@ public class Export extends SherlockActivity {
 		Button doEmail = (Button) findViewById(R.id.export_eml);
 		doEmail.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
-				startEmail();
+				startExport(getFileStreamPath(FNAME), true);
 			}
 		});
 		Button doDeleteLog = (Button) findViewById(R.id.delete_logs);
@@ -213,28 +221,61 @@ public class Export extends SherlockActivity {
 		mDb.cleanupUnusedTags();
 	}
 
-	private Dialog progressDialog() {
+	private ProgressDialog progressDialog() {
 		mProgress = new ProgressDialog(Export.this);
 		mProgress.setIcon(R.drawable.alert_dialog_icon);
 		mProgress.setTitle(R.string.saving_log);
-		mProgress.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+		mProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
 		mProgress.setButton("Hide", new DialogInterface.OnClickListener() {
 			public void onClick(DialogInterface dialog, int which) {
-				// TODO Just make dialog go away (Do I need to do anything?)
+				// The export keeps running, we just report when it is done
 			}
 		});
 		mProgress.setButton2("Cancel", new DialogInterface.OnClickListener() {
 			public void onClick(DialogInterface dialog, int which) {
-				// TODO Cancel the save	
+				if (sExportTask != null) sExportTask.cancelExport();
 			}
 		});
 		return mProgress;
 	}
 
+	/**
+	 * Starts writing the log to target in the background, showing progress.
+	 * If an export is already running, only brings its progress dialog back.
+	 * 
+	 * @param email
+	 *            Write a world readable file into the private files directory
+	 *            and send it by email once done.
+	 */
+	private void startExport(File target, boolean email) {
+		if (sExportTask != null) {
+			if (mProgress != null) mProgress.show();
+			return;
+		}
+		progressDialog().show();
+		sExportTask = new ExportTask(getApplicationContext(), target, email);
+		sExportTask.attach(this);
+		sExportTask.execute();
+	}
+
+	/**
+	 * Called by the export on the activity showing it.
+	 * 
+	 * @param success
+	 *            Whether the log was written, or null if it was cancelled.
+	 */
+	private void finishExport(Boolean success, boolean email) {
+		if (mProgress != null) {
+			mProgress.dismiss();
+			mProgress = null;
+		}
+		if (success == null) return;
+		if (!success) showDialog(DIALOG_CANTWRITEFILE);
+		else if (email) startEmail();
+		else showDialog(DIALOG_DONE);
+	}
+
 	private void startEmail() {
-		writeFileTemp(FNAME, getLogData().toString());
-		//writeFile(Environment.getExternalStorageDirectory(), FNAME, getLogData().toString());
-		
 		Intent emailIntent = new Intent(android.content.Intent.ACTION_SEND);
 		//emailIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, "TESTING EMAIL");
 		emailIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, "Timepie: your timepie log");
@@ -253,58 +294,102 @@ public class Export extends SherlockActivity {
 		}
 	}
 
-	private StringBuilder getLogData() {
-		SimpleDateFormat SDF = new SimpleDateFormat("[yyyy.MM.dd HH:mm:ss EEE]", Locale.getDefault());
-		StringBuilder log = new StringBuilder();
+	/*
+	 * Writes the log in the background. The log goes into a temporary file next
+	 * to the target which is only renamed into place once complete, so a
+	 * cancelled or failed export never leaves a truncated log behind. The task
+	 * uses the application context and its own database connection so that it
+	 * can finish after the activity is gone if the progress dialog was hidden,
+	 * and reports to whichever Export activity is attached at the time.
+	 *
+	 * Cancelling goes through the exporter rather than AsyncTask.cancel(), so
+	 * the result always reaches onPostExecute(), as null if the write stopped.
+	 */
+	private static class ExportTask extends AsyncTask<Void, Integer, Boolean> implements
+			LogExporter.ProgressListener {
+		private final Context mContext;
+		private final File mTarget;
+		private final boolean mEmail;
+		private final PingsDbAdapter mExportDb;
+		private final LogExporter mExporter;
 
-		Cursor pings = mDb.fetchAllPings(false);
-		startManagingCursor(pings);
-		pings.moveToFirst();
-		if (pings.isAfterLast()) { return log.append(this.getString(R.string.nodata)); }
-		while (!pings.isAfterLast()) {
-			try {
-				long pt = pings.getLong(pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_PING));
-				String tags = mDb.fetchTagString(pings.getLong(pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_ROWID)));
-				log.append(pt+" "+tags+" "+SDF.format(new Date(pt*1000))+"\n");
-			} catch (Exception e) {
-				Log.e(TAG, "&&&&&&&&&&&& getLogString: "+e.getMessage());
-			}
-			pings.moveToNext();
+		// Only touched on the UI thread
+		private Export mActivity = null;
+		private int mWritten = 0;
+		private int mTotal = 0;
+
+		public ExportTask(Context context, File target, boolean email) {
+			mContext = context;
+			mTarget = target;
+			mEmail = email;
+			mExportDb = new PingsDbAdapter(context);
+			mExporter = new LogExporter(mExportDb);
 		}
-		return log;
-	}
 
-	private void writeFileTemp(String fname, String filedata) {
-		try {
-			FileOutputStream fos = this.openFileOutput(fname, MODE_WORLD_READABLE);
-			OutputStreamWriter out_stream = new OutputStreamWriter(new 
-					BufferedOutputStream(fos));
-			out_stream.write(filedata);
-			out_stream.close();
-			fos.close();
-		} catch (Exception e) {
-			showDialog(DIALOG_CANTWRITEFILE);
+		/** Reports progress and the result to activity, null detaches. */
+		public void attach(Export activity) {
+			mActivity = activity;
 		}
-	}
 
-	private void writeFile(File fpath, String fname, String filedata) {
-		try {
-			File log = new File(fpath, fname);
-			log.createNewFile();
-			FileOutputStream file_out = new FileOutputStream(log);
-			OutputStreamWriter out_stream = new OutputStreamWriter(new 
-					BufferedOutputStream(file_out));
+		public void cancelExport() {
+			mExporter.cancel();
+		}
+
+		/** Shows the last progress in the attached activity's dialog. */
+		public void showProgress() {
+			if (mActivity == null || mActivity.mProgress == null) return;
+			mActivity.mProgress.setMax(mTotal);
+			mActivity.mProgress.setProgress(mWritten);
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			File tmp = new File(mTarget.getPath() + ".tmp");
 			try {
-				out_stream.write(filedata);
+				TaggingWriter.getInstance(mContext).awaitIdle();
+				mExportDb.open();
+				OutputStream os;
+				// Private files have to be world readable for the email app
+				if (mEmail) os = mContext.openFileOutput(tmp.getName(), MODE_WORLD_READABLE);
+				else os = new FileOutputStream(tmp);
+				Writer out = new BufferedWriter(new OutputStreamWriter(os), 8192);
+				int written;
+				try {
+					written = mExporter.write(out, this);
+					if (written == 0) out.write(mContext.getString(R.string.nodata));
+				} finally {
+					out.close();
+				}
+				if (written < 0) return null;
+				if (!tmp.renameTo(mTarget)) {
+					Log.e(TAG, "doInBackground: Could not rename " + tmp + " to " + mTarget);
+					return false;
+				}
+				return true;
 			} catch (Exception e) {
-				Log.e(TAG,"&&&&&&&&&&&& writeFile() write: "+e.getMessage());
-				showDialog(DIALOG_CANTWRITEFILE);
+				Log.e(TAG, "doInBackground: Export failed: " + e.getMessage());
+				return false;
+			} finally {
+				mExportDb.close();
+				if (tmp.exists()) tmp.delete();
 			}
-			out_stream.close();
-			file_out.close();
-		} catch (Exception e) {
-			Log.e(TAG,"&&&&&&&&&&&& writeFile() open: "+e.getMessage());
-			showDialog(DIALOG_CANTWRITEFILE);
+		}
+
+		public void onProgress(int written, int total) {
+			publishProgress(written, total);
+		}
+
+		@Override
+		protected void onProgressUpdate(Integer... values) {
+			mWritten = values[0];
+			mTotal = values[1];
+			showProgress();
+		}
+
+		@Override
+		protected void onPostExecute(Boolean success) {
+			sExportTask = null;
+			if (mActivity != null) mActivity.finishExport(success, mEmail);
 		}
 	}
 
@@ -312,6 +397,11 @@ public class Export extends SherlockActivity {
 	protected void onDestroy() {
 		// TODO Auto-generated method stub
 		super.onDestroy();
+		if (sExportTask != null && sExportTask.mActivity == this) sExportTask.attach(null);
+		if (mProgress != null) {
+			mProgress.dismiss();
+			mProgress = null;
+		}
 		mDb.close();
 		mBeeDb.close();
 	}
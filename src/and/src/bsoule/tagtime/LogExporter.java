@@ -0,0 +1,102 @@
+package bsoule.tagtime;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/*
+ * Writes the ping log in timepie.log format, one line per ping:
+ * 
+ * <unix time> <tags> [yyyy.MM.dd HH:mm:ss EEE]
+ * 
+ * Lines are written straight from the database cursor to the given Writer.
+ * Tags are copied out of the cursor into a reused buffer and lines are
+ * formatted into another one with PingTimeFormatter, so writing a line does
+ * not allocate and memory use does not depend on the size of the log.
+ * 
+ * An export can be cancelled from another thread with cancel(), which makes
+ * write() stop at the next line.
+ */
+public class LogExporter {
+
+	// Number of lines between progress callbacks
+	private static final int PROGRESS_INTERVAL = 256;
+
+	public interface ProgressListener {
+		/** Called on the writing thread every few hundred lines. */
+		void onProgress(int written, int total);
+	}
+
+	private final PingsDbAdapter mDb;
+	private final PingTimeFormatter mTimeFormat = new PingTimeFormatter(' ', true);
+	private final StringBuilder mLine = new StringBuilder(128);
+	private final CharArrayBuffer mTags = new CharArrayBuffer(64);
+	private char[] mChars = new char[128];
+	private volatile boolean mCancelled = false;
+
+	public LogExporter(PingsDbAdapter db) {
+		mDb = db;
+	}
+
+	/** Asks a running write() to stop. Can be called from any thread. */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public int write(Writer out) throws IOException {
+		return write(out, null);
+	}
+
+	/**
+	 * Writes all pings to out in chronological order. The writer is not
+	 * closed, callers should wrap it in a BufferedWriter.
+	 * 
+	 * @param listener
+	 *            Receives progress updates, may be null.
+	 * @return Number of pings written, or -1 if the export was cancelled.
+	 */
+	public int write(Writer out, ProgressListener listener) throws IOException {
+		int count = 0;
+		Cursor pings = mDb.fetchAllPingsWithTags(false);
+		try {
+			int total = pings.getCount();
+			int pingIdx = pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_PING);
+			int tagsIdx = pings.getColumnIndexOrThrow(PingsDbAdapter.KEY_TAGS);
+			pings.moveToFirst();
+			while (!pings.isAfterLast()) {
+				if (mCancelled) return -1;
+				// group_concat gives null for pings without tags, which copies
+				// as an empty buffer
+				pings.copyStringToBuffer(tagsIdx, mTags);
+				formatLine(pings.getLong(pingIdx), mTags);
+				int len = mLine.length();
+				if (len > mChars.length) mChars = new char[len * 2];
+				mLine.getChars(0, len, mChars, 0);
+				out.write(mChars, 0, len);
+				count++;
+				if (listener != null && count % PROGRESS_INTERVAL == 0) listener.onProgress(count, total);
+				pings.moveToNext();
+			}
+			if (listener != null) listener.onProgress(count, total);
+		} finally {
+			pings.close();
+		}
+		return count;
+	}
+
+	/** Formats a single log line into mLine. */
+	private void formatLine(long pt, CharArrayBuffer tags) {
+		mLine.setLength(0);
+		mLine.append(pt).append(' ');
+		if (tags.sizeCopied > 0) mLine.append(tags.data, 0, tags.sizeCopied).append(' ');
+		mLine.append(' ').append('[');
+		mTimeFormat.format(pt, mLine);
+		mLine.append(']').append('\n');
+	}
+}
@@ -0,0 +1,118 @@
+package bsoule.tagtime;
+
+/*
+ * Hash map from long keys to byte values that stores both in primitive
+ * arrays, so lookups and updates neither box nor allocate. Uses open
+ * addressing with linear probing and backward shift deletion, which keeps
+ * probe chains short without tombstones.
+ */
+public class LongByteMap {
+
+	private long[] mKeys;
+	private byte[] mValues;
+	private boolean[] mUsed;
+	private int mMask;
+	private int mSize = 0;
+
+	public LongByteMap() {
+		this(16);
+	}
+
+	public LongByteMap(int capacity) {
+		int slots = 16;
+		while (slots < capacity * 2)
+			slots <<= 1;
+		allocate(slots);
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/** Returns the value stored for key, or def if there is none. */
+	public byte get(long key, byte def) {
+		int i = find(key);
+		return (i >= 0) ? mValues[i] : def;
+	}
+
+	public void put(long key, byte value) {
+		if ((mSize + 1) * 2 > mKeys.length) rehash(mKeys.length * 2);
+		int i = slot(key);
+		while (mUsed[i]) {
+			if (mKeys[i] == key) {
+				mValues[i] = value;
+				return;
+			}
+			i = (i + 1) & mMask;
+		}
+		mUsed[i] = true;
+		mKeys[i] = key;
+		mValues[i] = value;
+		mSize++;
+	}
+
+	public void remove(long key) {
+		int hole = find(key);
+		if (hole < 0) return;
+		mUsed[hole] = false;
+		mSize--;
+		// Move later entries of the probe chain into the hole unless that
+		// would put them before their home slot
+		int i = (hole + 1) & mMask;
+		while (mUsed[i]) {
+			int home = slot(mKeys[i]);
+			boolean between = (hole <= i) ? (hole < home && home <= i) : (hole < home || home <= i);
+			if (!between) {
+				mKeys[hole] = mKeys[i];
+				mValues[hole] = mValues[i];
+				mUsed[hole] = true;
+				mUsed[i] = false;
+				hole = i;
+			}
+			i = (i + 1) & mMask;
+		}
+	}
+
+	public void clear() {
+		if (mSize == 0) return;
+		for (int i = 0; i < mUsed.length; i++)
+			mUsed[i] = false;
+		mSize = 0;
+	}
+
+	private int find(long key) {
+		int i = slot(key);
+		while (mUsed[i]) {
+			if (mKeys[i] == key) return i;
+			i = (i + 1) & mMask;
+		}
+		return -1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mMask;
+	}
+
+	private void allocate(int slots) {
+		mKeys = new long[slots];
+		mValues = new byte[slots];
+		mUsed = new boolean[slots];
+		mMask = slots - 1;
+	}
+
+	private void rehash(int slots) {
+		long[] keys = mKeys;
+		byte[] values = mValues;
+		boolean[] used = mUsed;
+		allocate(slots);
+		mSize = 0;
+		for (int i = 0; i < used.length; i++) {
+			if (used[i]) put(keys[i], values[i]);
+		}
+	}
+}
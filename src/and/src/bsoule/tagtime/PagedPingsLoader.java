@@ -0,0 +1,246 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+/*
+ * Loads pings with their tags newest first, one page at a time. Each load
+ * fetches the page after the last loaded ping with a keyset query and
+ * delivers a MergeCursor over all pages loaded so far, so earlier pages are
+ * never queried again. The first page arrives as quickly as a single small
+ * query no matter how long the history is.
+ *
+ * Pages are shared between the delivered cursors. Closing a delivered cursor
+ * would close them, so old ones are left alone and the pages are only closed
+ * when they are replaced by reload() or when the loader is reset.
+ *
+ * The first load also makes sure the month index used for fast scrolling is
+ * loaded, so that its aggregate query does not run on the UI thread.
+ *
+ * The loader outlives the activity across configuration changes, so it opens
+ * its own database adapters on the application context and closes them when
+ * it is reset and no load is running anymore.
+ */
+public class PagedPingsLoader extends AsyncTaskLoader<Cursor> {
+
+	public static final int PAGE_SIZE = 100;
+
+	private final PingsDbAdapter mDb;
+	private final BeeminderDbAdapter mBeeDb;
+	private boolean mDbOpen = false;
+	// Reset while a load was running, close the databases once it is done
+	private boolean mCloseWhenIdle = false;
+
+	// Only touched on the UI thread
+	private List<Cursor> mPages = new ArrayList<Cursor>();
+	private Cursor mMerged = null;
+	// Page added by the last delivery, until the activity takes it
+	private Cursor mNewPage = null;
+	private int mLoadedCount = 0;
+	private int mWanted = 0;
+	private boolean mComplete = false;
+	private boolean mLoading = false;
+
+	// Parameters of the pending load, read by the worker thread
+	private volatile long mBefore = Long.MAX_VALUE;
+	private volatile boolean mReload = true;
+	private volatile int mLimit = PAGE_SIZE;
+
+	public PagedPingsLoader(Context context) {
+		super(context);
+		mDb = new PingsDbAdapter(getContext());
+		mBeeDb = new BeeminderDbAdapter(getContext());
+	}
+
+	private void openDatabases() {
+		mCloseWhenIdle = false;
+		if (mDbOpen) return;
+		mDb.open();
+		mBeeDb.open();
+		mDbOpen = true;
+	}
+
+	private void closeDatabases() {
+		mCloseWhenIdle = false;
+		if (!mDbOpen) return;
+		mBeeDb.close();
+		mDb.close();
+		mDbOpen = false;
+	}
+
+	/**
+	 * Returns the page added by the last delivery, or null if it was returned
+	 * already. Must be called from the UI thread.
+	 */
+	public Cursor takeNewPage() {
+		Cursor page = mNewPage;
+		mNewPage = null;
+		return page;
+	}
+
+	/** Returns true once the oldest ping has been loaded. */
+	public boolean isComplete() {
+		return mComplete;
+	}
+
+	/**
+	 * Starts loading the next page unless one is being loaded already or
+	 * everything is loaded. Must be called from the UI thread.
+	 */
+	public void loadMore() {
+		if (mLoading || mComplete || mPages.isEmpty()) return;
+		mReload = false;
+		mBefore = lastPingTime();
+		mLimit = PAGE_SIZE;
+		mLoading = true;
+		forceLoad();
+	}
+
+	/**
+	 * Loads pages until at least count pings are loaded or everything is, in
+	 * as few queries as possible. Used to jump far into the history. Must be
+	 * called from the UI thread.
+	 */
+	public void loadUntil(int count) {
+		mWanted = Math.max(mWanted, count);
+		if (mLoading || mComplete || mPages.isEmpty() || mLoadedCount >= mWanted) return;
+		mReload = false;
+		mBefore = lastPingTime();
+		mLimit = Math.max(PAGE_SIZE, mWanted - mLoadedCount);
+		mLoading = true;
+		forceLoad();
+	}
+
+	/**
+	 * Drops all pages and loads the newest page again. The old pages stay
+	 * valid until the new one has been delivered. Must be called from the UI
+	 * thread.
+	 */
+	public void reload() {
+		mReload = true;
+		mBefore = Long.MAX_VALUE;
+		mLimit = PAGE_SIZE;
+		mLoading = true;
+		forceLoad();
+	}
+
+	/* Runs on a worker thread */
+	@Override
+	public Cursor loadInBackground() {
+		// Tags saved by EditPing may still be on their way to the database
+		TaggingWriter.getInstance(getContext()).awaitIdle();
+		mDb.getMonthIndex();
+		int limit = mLimit;
+		Cursor page = mDb.fetchPingsWithTagsBefore(mBefore, limit);
+		// Fills the cursor window here rather than on the UI thread
+		int count = page.getCount();
+
+		// Warm up the Beeminder states for the page, so that rows show their
+		// icons right away
+		long[] ids = new long[count];
+		long[] times = new long[count];
+		int pingIdx = page.getColumnIndex(PingsDbAdapter.KEY_PING);
+		page.moveToFirst();
+		for (int i = 0; i < count; i++) {
+			ids[i] = page.getLong(0);
+			times[i] = page.getLong(pingIdx);
+			page.moveToNext();
+		}
+		try {
+			BeeminderStatus.getInstance().prefetch(mDb, mBeeDb, ids, times);
+		} catch (Exception e) {
+			// Rows fall back to prefetching their states while binding
+		}
+		return page;
+	}
+
+	/* Runs on the UI thread */
+	@Override
+	public void deliverResult(Cursor page) {
+		mLoading = false;
+		if (isReset()) {
+			// An async query came in while the loader is stopped
+			if (page != null) page.close();
+			if (mCloseWhenIdle) closeDatabases();
+			return;
+		}
+		if (page == null) return;
+
+		List<Cursor> oldPages = null;
+		if (mReload) {
+			oldPages = mPages;
+			mPages = new ArrayList<Cursor>();
+			mLoadedCount = 0;
+			mWanted = 0;
+			mReload = false;
+		}
+		mPages.add(page);
+		mNewPage = page;
+		mLoadedCount += page.getCount();
+		mComplete = page.getCount() < mLimit;
+		mMerged = new MergeCursor(mPages.toArray(new Cursor[mPages.size()]));
+
+		if (isStarted()) super.deliverResult(mMerged);
+
+		if (oldPages != null) {
+			for (Cursor c : oldPages)
+				c.close();
+		}
+		// Keep going if a jump asked for more than this page had
+		if (mLoadedCount < mWanted) loadUntil(mWanted);
+	}
+
+	@Override
+	protected void onStartLoading() {
+		openDatabases();
+		if (mMerged != null) super.deliverResult(mMerged);
+		if (takeContentChanged() || mMerged == null) reload();
+	}
+
+	@Override
+	protected void onStopLoading() {
+		// Attempt to cancel the current load task if possible.
+		cancelLoad();
+	}
+
+	@Override
+	public void onCanceled(Cursor page) {
+		mLoading = false;
+		if (page != null && !page.isClosed()) page.close();
+		if (mCloseWhenIdle) closeDatabases();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+
+		// Ensure the loader is stopped
+		onStopLoading();
+
+		for (Cursor c : mPages)
+			c.close();
+		mPages.clear();
+		mMerged = null;
+		mNewPage = null;
+		mLoadedCount = 0;
+		mWanted = 0;
+		mComplete = false;
+		// A cancelled load may still be using the databases
+		if (mLoading) mCloseWhenIdle = true;
+		else closeDatabases();
+	}
+
+	/** Returns the ping time of the oldest loaded ping. */
+	private long lastPingTime() {
+		for (int i = mPages.size() - 1; i >= 0; i--) {
+			Cursor c = mPages.get(i);
+			if (c.moveToLast()) return c.getLong(c.getColumnIndex(PingsDbAdapter.KEY_PING));
+		}
+		return Long.MAX_VALUE;
+	}
+}
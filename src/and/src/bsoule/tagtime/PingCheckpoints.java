@@ -0,0 +1,300 @@
+package bsoule.tagtime;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ * Sparse index of (ping time, RNG seed) pairs along the ping schedule,
+ * one entry every BLOCK pings counted from the birth of timepie. Entry i
+ * holds the time of ping number i*BLOCK together with the RNG state that
+ * generates the ping after it, so prevping() can resume from the nearest
+ * entry instead of replaying the whole schedule.
+ *
+ * The schedule depends on the ping gap, so the index is only valid for the
+ * gap it was built with. For the default gap the index comes built in, up to
+ * 2041. Indexes for other gaps, and entries past the built in ones, are
+ * stored in the shared preferences next to KEY_NEXT/KEY_SEED and are kept
+ * when ping data is deleted.
+ */
+public class PingCheckpoints {
+	private static final String TAG = "PingCheckpoints";
+
+	public static final String KEY_CHECKPOINTS = "RNG_checkpoints";
+	public static final int BLOCK = 1024;
+	// Default of the pingGap preference, in minutes
+	public static final int DEFAULT_GAP = 45;
+
+	// Checkpoints for DEFAULT_GAP from the birth of timepie until 2041,
+	// precomputed so that a cold start after a reinstall or a data wipe does
+	// not replay the whole schedule. Generated with PingSchedule.nextSeed()
+	// and PingSchedule.nextTime().
+	private static final long[] DEFAULT_TIMES = {
+			1184083200L, 1186841554L, 1189525214L, 1192194548L, 1194830695L, 1197660205L,
+			1200326610L, 1203031647L, 1205833800L, 1208779319L, 1211497197L, 1214311838L,
+			1217073663L, 1219835114L, 1222621978L, 1225405744L, 1228214982L, 1231072621L,
+			1233935507L, 1236767771L, 1239465308L, 1242340097L, 1245060032L, 1247639822L,
+			1250396288L, 1253093995L, 1255906735L, 1258819077L, 1261657611L, 1264454459L,
+			1267205612L, 1269964770L, 1272743293L, 1275642777L, 1278464242L, 1281364320L,
+			1284013943L, 1286766591L, 1289481634L, 1292341270L, 1295064388L, 1297816862L,
+			1300484413L, 1303218038L, 1305867095L, 1308627443L, 1311301687L, 1314217502L,
+			1316976336L, 1319837444L, 1322560707L, 1325337271L, 1328126445L, 1330851263L,
+			1333667391L, 1336375411L, 1339049304L, 1341798438L, 1344582702L, 1347282643L,
+			1350010547L, 1352743604L, 1355440801L, 1358119443L, 1360844088L, 1363606390L,
+			1366285533L, 1369018315L, 1371851726L, 1374398121L, 1377287579L, 1380081006L,
+			1382925022L, 1385744732L, 1388510888L, 1391246845L, 1394010970L, 1396850214L,
+			1399706934L, 1402384149L, 1405031552L, 1407862840L, 1410538413L, 1413476491L,
+			1416206661L, 1418874326L, 1421696665L, 1424402801L, 1427079939L, 1429891357L,
+			1432737148L, 1435481612L, 1438127325L, 1440848838L, 1443713250L, 1446506350L,
+			1449186105L, 1451816005L, 1454551018L, 1457411068L, 1460227933L, 1462949664L,
+			1465577692L, 1468352860L, 1471035176L, 1473730025L, 1476370315L, 1479168690L,
+			1481947204L, 1484637459L, 1487369201L, 1490079078L, 1492761246L, 1495599934L,
+			1498385763L, 1501371459L, 1504089328L, 1506911924L, 1509661098L, 1512322867L,
+			1515013955L, 1517797463L, 1520484198L, 1523371616L, 1526086896L, 1528704111L,
+			1531559584L, 1534324428L, 1537090947L, 1539729712L, 1542358931L, 1545058244L,
+			1547648261L, 1550374180L, 1553197176L, 1555869343L, 1558877991L, 1561757364L,
+			1564647201L, 1567474502L, 1570321196L, 1573115204L, 1575912871L, 1578580856L,
+			1581365696L, 1584212175L, 1587007175L, 1589883929L, 1592723537L, 1595437167L,
+			1598154979L, 1600892854L, 1603562114L, 1606436827L, 1609191206L, 1611875665L,
+			1614751429L, 1617486374L, 1620266886L, 1622909640L, 1625689618L, 1628682162L,
+			1631430602L, 1634348874L, 1637160417L, 1639863477L, 1642606406L, 1645541821L,
+			1648419726L, 1651329752L, 1653958032L, 1656711164L, 1659421688L, 1662219043L,
+			1664956720L, 1667738119L, 1670613558L, 1673251325L, 1676100393L, 1678862515L,
+			1681620616L, 1684424327L, 1687213487L, 1690009595L, 1692663732L, 1695438575L,
+			1698076976L, 1700738721L, 1703383822L, 1706100253L, 1708861358L, 1711622958L,
+			1714265246L, 1716858110L, 1719565817L, 1722270021L, 1724898175L, 1727625889L,
+			1730478332L, 1733277987L, 1736105783L, 1738911202L, 1741712421L, 1744492024L,
+			1747340187L, 1750165303L, 1753029258L, 1755713497L, 1758507177L, 1761320115L,
+			1764071481L, 1766800478L, 1769655724L, 1772462535L, 1775326929L, 1778140004L,
+			1780836981L, 1783629290L, 1786422777L, 1789081143L, 1791847238L, 1794724377L,
+			1797479709L, 1800139896L, 1802887131L, 1805698974L, 1808413039L, 1811190757L,
+			1813905068L, 1816560263L, 1819205634L, 1822263355L, 1825253014L, 1827957960L,
+			1830734207L, 1833476707L, 1836105697L, 1838955491L, 1841732183L, 1844516853L,
+			1847240365L, 1849915709L, 1852655300L, 1855457954L, 1858195239L, 1861019962L,
+			1863690158L, 1866406913L, 1869206102L, 1871922330L, 1874723308L, 1877426084L,
+			1880308861L, 1883031994L, 1885719235L, 1888497807L, 1891545520L, 1894176094L,
+			1897078157L, 1899796423L, 1902408391L, 1905140110L, 1907862998L, 1910692983L,
+			1913603803L, 1916274777L, 1919023369L, 1921924187L, 1924680712L, 1927520750L,
+			1930261103L, 1932900814L, 1935747154L, 1938571370L, 1941331531L, 1943996475L,
+			1946758211L, 1949634645L, 1952544211L, 1955297052L, 1958168980L, 1960800905L,
+			1963411135L, 1966318445L, 1969100745L, 1971896408L, 1974587275L, 1977366349L,
+			1980157853L, 1982888747L, 1985765258L, 1988594952L, 1991251075L, 1994024836L,
+			1996950145L, 1999673926L, 2002416292L, 2005285910L, 2008084527L, 2010788707L,
+			2013674666L, 2016317932L, 2019092043L, 2021926633L, 2024740788L, 2027451464L,
+			2030160294L, 2032796244L, 2035526038L, 2038280191L, 2041006730L, 2043677303L,
+			2046663390L, 2049291322L, 2052055988L, 2054805773L, 2057669536L, 2060374447L,
+			2063095427L, 2065954285L, 2068488577L, 2071267681L, 2074139168L, 2076717520L,
+			2079431707L, 2082254415L, 2085056144L, 2087922663L, 2090548698L, 2093302346L,
+			2096097774L, 2098797888L, 2101583272L, 2104382512L, 2107270479L, 2109893010L,
+			2112633623L, 2115252744L, 2118080033L, 2120926251L, 2123724423L, 2126470891L,
+			2129121801L, 2131846003L, 2134641116L, 2137630286L, 2140288477L, 2143041112L,
+			2145805283L, 2148599787L, 2151473988L, 2154331612L, 2157164413L, 2160148203L,
+			2162937062L, 2165631877L, 2168323029L, 2171127001L, 2173953674L, 2176819479L,
+			2179654336L, 2182150457L, 2184956383L, 2187698787L, 2190523268L, 2193162681L,
+			2195801630L, 2198711032L, 2201586763L, 2204386183L, 2207180415L, 2209981381L,
+			2212626932L, 2215260797L, 2217896860L, 2220703669L, 2223566901L, 2226315822L,
+			2229079141L, 2232019549L, 2234891772L, 2237744775L, 2240482407L };
+	private static final long[] DEFAULT_SEEDS = {
+			666L, 1041348463L, 530479386L, 460399574L, 980464328L, 1208017133L,
+			1978648971L, 1278934274L, 36439714L, 303693854L, 1152693672L, 37728160L,
+			1527857071L, 1329122889L, 412637791L, 1606604736L, 875838595L, 1788408893L,
+			1027003767L, 776134056L, 1620941838L, 1712149489L, 34896469L, 894809553L,
+			410711173L, 1067313297L, 584562402L, 775509644L, 17871527L, 426976494L,
+			267540431L, 1732469905L, 505856068L, 2115676932L, 47112943L, 16554516L,
+			426117984L, 612722780L, 1163907127L, 1414568149L, 2067306377L, 121614949L,
+			583609436L, 1832669393L, 1116762348L, 528137191L, 776239519L, 678309011L,
+			47888156L, 93709862L, 2031875716L, 929090937L, 462802847L, 76739612L,
+			1928430027L, 1341238056L, 2028973986L, 38060553L, 288291406L, 1016200765L,
+			1888859200L, 1480113339L, 8381346L, 1979741059L, 1899898507L, 925206630L,
+			958349151L, 1502136626L, 730284241L, 729127857L, 1436193101L, 61705663L,
+			1856226270L, 1631708071L, 1615564193L, 1940095804L, 1873349216L, 1027975600L,
+			1524356300L, 1620287084L, 298318471L, 1802653531L, 1124134845L, 187290747L,
+			1980860420L, 1798924396L, 1307985606L, 713594178L, 600098484L, 1102954849L,
+			194168132L, 383880351L, 699982050L, 941518160L, 1243500540L, 1556048875L,
+			1333680954L, 1302990119L, 85130152L, 962038379L, 1800246056L, 1906569850L,
+			1691768787L, 635660694L, 815166525L, 449506957L, 1633004323L, 206163384L,
+			1543434220L, 950515639L, 42463840L, 1280933092L, 475486514L, 353497902L,
+			466232544L, 1652867108L, 163012926L, 250168295L, 194732905L, 1423041425L,
+			1320121043L, 1302106492L, 202579973L, 1804189783L, 1410020343L, 1801690634L,
+			412047050L, 1037278209L, 988579013L, 733640893L, 1235818731L, 1328636016L,
+			1356288947L, 1686646376L, 1111777141L, 431491515L, 794465237L, 53356025L,
+			1926287175L, 1017165329L, 1360676570L, 506914909L, 747184104L, 1500811818L,
+			562117253L, 493767676L, 140191697L, 1235365307L, 1527259037L, 509933891L,
+			1913362200L, 230848697L, 1685293437L, 246604670L, 1875992048L, 1623336479L,
+			654321768L, 786558480L, 1783799348L, 899367699L, 1863014729L, 2048040616L,
+			1771478503L, 35990990L, 260817282L, 103235208L, 424487023L, 317557911L,
+			957402295L, 1601101810L, 1994637361L, 823596140L, 228220070L, 2048326251L,
+			649003214L, 321736960L, 1993512397L, 866586655L, 548132990L, 599507849L,
+			1905312738L, 797619893L, 53728044L, 1754879175L, 1853958507L, 868140366L,
+			586195694L, 1494168663L, 2081054210L, 1851841342L, 1624350948L, 2037323209L,
+			270324068L, 2081322739L, 642411076L, 1285883236L, 1095789311L, 556493696L,
+			642452924L, 191991156L, 416876153L, 1581235275L, 836893851L, 1045251838L,
+			1564521582L, 1570220430L, 1449863303L, 1993498642L, 1598488464L, 1316160897L,
+			512647603L, 886252136L, 99344885L, 541958039L, 27242332L, 327495532L,
+			1754183511L, 1678639033L, 2146618961L, 368272140L, 1999329625L, 18524533L,
+			371643062L, 415759728L, 655906945L, 877361408L, 1101214619L, 2036007729L,
+			551301456L, 2078887802L, 835564893L, 1752845403L, 229145429L, 429896847L,
+			1589307180L, 1592025538L, 2096265376L, 93523554L, 523903964L, 476074788L,
+			2021436602L, 419891604L, 2111431843L, 1920002938L, 1429990289L, 665605423L,
+			1709008200L, 1939747784L, 163261891L, 1546490015L, 292301305L, 1628344356L,
+			148118319L, 2109792904L, 1951612905L, 1891735970L, 528386637L, 557857946L,
+			1159001412L, 1778748361L, 107038852L, 968012064L, 170094773L, 519586611L,
+			891688536L, 665322495L, 57381874L, 1604645783L, 140668074L, 408842840L,
+			1560844107L, 808479673L, 812930495L, 397990757L, 2024984676L, 54454626L,
+			726261801L, 999427963L, 326764034L, 1525763870L, 358701871L, 1740192389L,
+			1761690192L, 15522200L, 1928064480L, 1713768510L, 1007540668L, 1864015632L,
+			1179196104L, 1419292164L, 667508561L, 1526603778L, 1637348569L, 1363555634L,
+			755962194L, 976383831L, 357018573L, 477591897L, 496017683L, 1238578007L,
+			252183509L, 487638801L, 1241332590L, 1533741497L, 117868165L, 15271515L,
+			1186170977L, 420313583L, 1767150363L, 935964549L, 527746804L, 615751813L,
+			1114104399L, 1475771934L, 1619648211L, 96705511L, 1825930306L, 981783256L,
+			1623486157L, 722702877L, 2127979457L, 672992787L, 317768842L, 1811063655L,
+			17764679L, 748553834L, 1699229144L, 1464291341L, 206045639L, 75035532L,
+			2118388210L, 586167439L, 732256478L, 1282502949L, 860011022L, 1804198610L,
+			1008094544L, 1113200678L, 1535518955L, 444279012L, 1525205456L, 327435227L,
+			148925811L, 483125645L, 131968034L, 1332031244L, 1134598295L, 1312062233L,
+			1201443491L, 2094765431L, 835699378L, 1246230626L, 786924198L, 1881782493L,
+			1476604198L, 213310450L, 1002596069L, 24410856L, 1504192678L, 716822155L,
+			1675829549L, 1118647897L, 248413550L, 915912054L, 1230777698L, 1590220366L,
+			148108514L, 1930519597L, 584228441L, 363035601L, 648939860L, 549553677L,
+			1735748678L, 1084300124L, 47783873L, 1030540246L, 1095579438L, 1157190726L,
+			2139861977L, 1498774609L, 1260020088L, 858346071L, 966412059L };
+
+	private final int mGap;
+	private long[] mTimes;
+	private long[] mSeeds;
+	private int mCount;
+	private boolean mDirty = false;
+
+	public PingCheckpoints(int gap) {
+		mGap = gap;
+		if (gap == DEFAULT_GAP) {
+			mCount = DEFAULT_TIMES.length;
+			mTimes = new long[mCount + 64];
+			mSeeds = new long[mCount + 64];
+			System.arraycopy(DEFAULT_TIMES, 0, mTimes, 0, mCount);
+			System.arraycopy(DEFAULT_SEEDS, 0, mSeeds, 0, mCount);
+		} else {
+			mTimes = new long[64];
+			mSeeds = new long[64];
+			mCount = 0;
+		}
+	}
+
+	/** Returns the number of entries that need no storing. */
+	private int builtinCount() {
+		return (mGap == DEFAULT_GAP) ? DEFAULT_TIMES.length : 0;
+	}
+
+	/**
+	 * Loads the index stored in the preferences. Returns an empty index if
+	 * none is stored, if it was built for a different gap or if it cannot be
+	 * parsed.
+	 */
+	public static PingCheckpoints load(SharedPreferences prefs, int gap) {
+		PingCheckpoints cp = new PingCheckpoints(gap);
+		String s = prefs.getString(KEY_CHECKPOINTS, null);
+		if (s == null) return cp;
+		try {
+			String[] fields = s.split(",");
+			if (Integer.parseInt(fields[0]) != gap) {
+				cp.mDirty = true;
+				return cp;
+			}
+			// Entries start at the index given as "@index", or at 0 in indexes
+			// stored before there was a built in one. Entries that are built
+			// in are skipped.
+			int first = 1, start = 0;
+			if (fields.length > 1 && fields[1].startsWith("@")) {
+				start = Integer.parseInt(fields[1].substring(1));
+				first = 2;
+			}
+			for (int i = first; i + 1 < fields.length; i += 2) {
+				cp.record(start + (i - first) / 2, Long.parseLong(fields[i]), Long.parseLong(fields[i + 1]));
+			}
+			// Rewrites indexes that still hold built in entries without them
+			cp.mDirty = start < cp.builtinCount() && fields.length > first;
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "load: Discarding invalid checkpoint index");
+			cp = new PingCheckpoints(gap);
+			cp.mDirty = true;
+		}
+		return cp;
+	}
+
+	/**
+	 * Writes the entries past the built in ones into the given editor, if the
+	 * index changed since loading.
+	 */
+	public void save(SharedPreferences.Editor editor) {
+		if (!mDirty) return;
+		mDirty = false;
+		int start = builtinCount();
+		if (mCount <= start) {
+			editor.remove(KEY_CHECKPOINTS);
+			return;
+		}
+		StringBuilder s = new StringBuilder();
+		s.append(mGap).append(",@").append(start);
+		for (int i = start; i < mCount; i++) {
+			s.append(',').append(mTimes[i]).append(',').append(mSeeds[i]);
+		}
+		editor.putString(KEY_CHECKPOINTS, s.toString());
+	}
+
+	public int getGap() {
+		return mGap;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public long getTime(int i) {
+		return mTimes[i];
+	}
+
+	public long getSeed(int i) {
+		return mSeeds[i];
+	}
+
+	/**
+	 * Returns the index of the last checkpoint strictly before time t, or -1
+	 * if there is none.
+	 */
+	public int floor(long t) {
+		int lo = 0, hi = mCount - 1, res = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mTimes[mid] < t) {
+				res = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Records the checkpoint for ping number index*BLOCK. Only extends the
+	 * index, entries that are already known are left alone.
+	 */
+	public void record(int index, long time, long seed) {
+		if (index == mCount) append(time, seed);
+	}
+
+	private void append(long time, long seed) {
+		if (mCount == mTimes.length) {
+			long[] times = new long[mCount * 2];
+			long[] seeds = new long[mCount * 2];
+			System.arraycopy(mTimes, 0, times, 0, mCount);
+			System.arraycopy(mSeeds, 0, seeds, 0, mCount);
+			mTimes = times;
+			mSeeds = seeds;
+		}
+		mTimes[mCount] = time;
+		mSeeds[mCount] = seed;
+		mCount++;
+		mDirty = true;
+	}
+}
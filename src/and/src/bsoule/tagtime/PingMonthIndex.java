@@ -0,0 +1,158 @@
+package bsoule.tagtime;
+
+import java.util.Calendar;
+
+import android.database.Cursor;
+
+/*
+ * Process-wide count of pings per month, in local time. Loaded once with a
+ * single aggregate query by PingsDbAdapter and then kept up to date
+ * write-through as pings are added. ViewLog takes snapshots of it to map
+ * fast-scroll sections to list positions without touching the pings.
+ *
+ * Months are keyed as year * 12 + (month - 1) and kept in ascending order in
+ * a sorted int[] with the counts in a parallel array.
+ */
+public class PingMonthIndex {
+
+	private static final PingMonthIndex sInstance = new PingMonthIndex();
+
+	private int[] mMonths = new int[32];
+	private int[] mCounts = new int[32];
+	private int mSize = 0;
+	private boolean mLoaded = false;
+
+	/*
+	 * Immutable view of the index for a newest-first list of pings. Section i
+	 * is the i-th newest month that has pings, starting at list position
+	 * positions[i].
+	 */
+	public static final class Snapshot {
+		public final String[] labels;
+		public final int[] positions;
+		public final int total;
+
+		private Snapshot(String[] labels, int[] positions, int total) {
+			this.labels = labels;
+			this.positions = positions;
+			this.total = total;
+		}
+
+		/** Returns the section containing the given list position. */
+		public int sectionForPosition(int position) {
+			int lo = 0, hi = positions.length - 1, res = 0;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (positions[mid] <= position) {
+					res = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return res;
+		}
+	}
+
+	public static PingMonthIndex getInstance() {
+		return sInstance;
+	}
+
+	private PingMonthIndex() {
+	}
+
+	public synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * Replaces the contents of the index with the (month, count) rows of the
+	 * given cursor, where months are formatted as "yyyy-MM".
+	 */
+	public synchronized void load(Cursor c) {
+		clear();
+		c.moveToFirst();
+		while (!c.isAfterLast()) {
+			String month = c.getString(0);
+			if (month != null && month.length() >= 7) {
+				int key = Integer.parseInt(month.substring(0, 4)) * 12 + Integer.parseInt(month.substring(5, 7)) - 1;
+				add(key, c.getInt(1));
+			}
+			c.moveToNext();
+		}
+		mLoaded = true;
+	}
+
+	/** Drops all entries. The next access through PingsDbAdapter reloads. */
+	public synchronized void clear() {
+		mSize = 0;
+		mLoaded = false;
+	}
+
+	/** Counts a new ping at the given unix time. */
+	public synchronized void addPing(long pingtime) {
+		if (!mLoaded) return;
+		// Local time, like the 'localtime' modifier used when loading
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(pingtime * 1000);
+		add(cal.get(Calendar.YEAR) * 12 + cal.get(Calendar.MONTH), 1);
+	}
+
+	/** Returns the sections of a newest-first list of all pings. */
+	public synchronized Snapshot snapshot() {
+		String[] labels = new String[mSize];
+		int[] positions = new int[mSize];
+		int pos = 0;
+		for (int i = 0; i < mSize; i++) {
+			int key = mMonths[mSize - 1 - i];
+			int month = key % 12 + 1;
+			labels[i] = (key / 12) + ((month < 10) ? ".0" : ".") + month;
+			positions[i] = pos;
+			pos += mCounts[mSize - 1 - i];
+		}
+		return new Snapshot(labels, positions, pos);
+	}
+
+	private void add(int key, int count) {
+		int i;
+		// Fast path for the current month
+		if (mSize > 0 && mMonths[mSize - 1] == key) {
+			i = mSize - 1;
+		} else {
+			i = indexOf(key);
+		}
+		if (i >= 0) {
+			mCounts[i] += count;
+			return;
+		}
+		i = -(i + 1);
+		if (mSize == mMonths.length) {
+			int[] months = new int[mSize * 2];
+			int[] counts = new int[mSize * 2];
+			System.arraycopy(mMonths, 0, months, 0, mSize);
+			System.arraycopy(mCounts, 0, counts, 0, mSize);
+			mMonths = months;
+			mCounts = counts;
+		}
+		System.arraycopy(mMonths, i, mMonths, i + 1, mSize - i);
+		System.arraycopy(mCounts, i, mCounts, i + 1, mSize - i);
+		mMonths[i] = key;
+		mCounts[i] = count;
+		mSize++;
+	}
+
+	/**
+	 * Binary search for key. Returns its index, or -(insertion point + 1) if
+	 * it is not present.
+	 */
+	private int indexOf(int key) {
+		int lo = 0, hi = mSize - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mMonths[mid] < key) lo = mid + 1;
+			else if (mMonths[mid] > key) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+}
@@ -0,0 +1,169 @@
+package bsoule.tagtime;
+
+/*
+ * Lookahead buffer over the ping schedule. Holds the upcoming ping times
+ * together with the RNG state that follows each of them in a ring buffer,
+ * generating more on demand. All generator state lives in the instance, so
+ * callers can read ahead without replaying the RNG themselves.
+ *
+ * The head of the schedule is the next ping to happen, and its seed is the
+ * RNG state used to generate the ping after it. This is exactly the pair
+ * stored under PingService.KEY_NEXT and PingService.KEY_SEED.
+ */
+public class PingSchedule {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final long IA = 16807;
+	private static final long IM = 2147483647;
+	private static final long INITSEED = 666;
+
+	private static final long TUES = 1261198800; // some random time more recent than BOT
+	private static final long BOT = 1184083200; // the birth of timepie
+
+	private final int mGap;
+	private final long[] mTimes;
+	private final long[] mSeeds;
+	private int mHead = 0;
+	private int mCount = 0;
+
+	public PingSchedule(long next, long seed, int gap) {
+		this(next, seed, gap, DEFAULT_CAPACITY);
+	}
+
+	public PingSchedule(long next, long seed, int gap, int capacity) {
+		mGap = gap;
+		mTimes = new long[Math.max(capacity, 2)];
+		mSeeds = new long[mTimes.length];
+		mTimes[0] = next;
+		mSeeds[0] = seed;
+		mCount = 1;
+	}
+
+	/**
+	 * Returns the schedule starting at the first ping at or after time t.
+	 * Starts from the nearest checkpoint before t when one is available, and
+	 * extends the checkpoint index with the blocks it walks through.
+	 */
+	public static PingSchedule after(long t, int gap, PingCheckpoints cp) {
+		long seed = INITSEED;
+		long nxt = TPController.DEBUG ? TUES : BOT;
+		if (TPController.DEBUG || (cp != null && cp.getGap() != gap)) cp = null;
+		int count = 0;
+		if (cp != null) {
+			int i = cp.floor(t);
+			if (i >= 0) {
+				nxt = cp.getTime(i);
+				seed = cp.getSeed(i);
+				count = i * PingCheckpoints.BLOCK;
+			}
+		}
+		while (nxt < t) {
+			if (cp != null && count % PingCheckpoints.BLOCK == 0) {
+				cp.record(count / PingCheckpoints.BLOCK, nxt, seed);
+			}
+			seed = nextSeed(seed);
+			nxt = nextTime(nxt, seed, gap);
+			count++;
+		}
+		return new PingSchedule(nxt, seed, gap);
+	}
+
+	public int getGap() {
+		return mGap;
+	}
+
+	/** Returns the time of the next ping without consuming it. */
+	public long peek() {
+		return mTimes[mHead];
+	}
+
+	/** Returns the RNG state paired with the next ping. */
+	public long peekSeed() {
+		return mSeeds[mHead];
+	}
+
+	/** Consumes the next ping and returns its time. */
+	public long next() {
+		if (mCount == 1) generate();
+		long t = mTimes[mHead];
+		mHead = (mHead + 1) % mTimes.length;
+		mCount--;
+		return t;
+	}
+
+	/**
+	 * Returns the times of all scheduled pings in [from, to), starting from
+	 * the head of the schedule. Does not consume anything. Pings beyond the
+	 * capacity of the buffer are generated but not cached.
+	 */
+	public long[] range(long from, long to) {
+		long[] res = new long[16];
+		int n = 0;
+		int i = 0;
+		long t = mTimes[mHead], seed = mSeeds[mHead];
+		while (t < to) {
+			if (t >= from) {
+				if (n == res.length) {
+					long[] grown = new long[n * 2];
+					System.arraycopy(res, 0, grown, 0, n);
+					res = grown;
+				}
+				res[n++] = t;
+			}
+			i++;
+			if (i == mCount && mCount < mTimes.length) generate();
+			if (i < mCount) {
+				int idx = (mHead + i) % mTimes.length;
+				t = mTimes[idx];
+				seed = mSeeds[idx];
+			} else {
+				seed = nextSeed(seed);
+				t = nextTime(t, seed, mGap);
+			}
+		}
+		long[] out = new long[n];
+		System.arraycopy(res, 0, out, 0, n);
+		return out;
+	}
+
+	/** Consumes all pings before time t and returns their times. */
+	public long[] drain(long to) {
+		long[] res = range(Long.MIN_VALUE, to);
+		for (int i = 0; i < res.length; i++)
+			next();
+		return res;
+	}
+
+	/** Appends the ping following the last buffered one. */
+	private void generate() {
+		int last = (mHead + mCount - 1) % mTimes.length;
+		long seed = nextSeed(mSeeds[last]);
+		long t = nextTime(mTimes[last], seed, mGap);
+		int idx = (mHead + mCount) % mTimes.length;
+		mTimes[idx] = t;
+		mSeeds[idx] = seed;
+		mCount++;
+	}
+
+	/* *********************** *
+	 * Random number generator *
+	 * *********************** */
+
+	// Returns the RNG state following seed, a random integer in [1,$IM-1].
+	// (This is ran0 from Numerical Recipes and has a period of ~2 billion.)
+	static long nextSeed(long seed) {
+		if (TPController.DEBUG) return seed;
+		return IA * seed % IM;
+	}
+
+	// Takes previous ping time and the freshly advanced RNG state, returns
+	// the next ping time (unix time). The gap between pings is drawn from an
+	// exponential distribution with mean gap. Gap is in minutes, we want
+	// seconds, so multiply by 60.
+	static long nextTime(long prev, long seed, int gap) {
+		if (TPController.DEBUG) return Math.max(prev + 1, System.currentTimeMillis() / 1000 + 60);
+		double exprand = -1 * gap * 60 * Math.log(seed / (IM * 1.0));
+		return Math.max(prev + 1, Math.round(prev + exprand));
+	}
+}
@@ -49,9 +49,8 @@ public class PingService extends Service {
 	private boolean mNotify;
 	private int mGap;
 
-	// seed is a variable that is really the state of the RNG.
-	private static long SEED;
-	private static long NEXT;
+	// upcoming pings together with the RNG state, see PingSchedule
+	private PingSchedule mSchedule;
 
 	private static final long RETROTHRESH = 60;
 
@@ -74,8 +73,8 @@ public class PingService extends Service {
 		mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
 		mNotify = mPrefs.getBoolean(TPController.KEY_RUNNING, true);
 
-		NEXT = mPrefs.getLong(KEY_NEXT, -1);
-		SEED = mPrefs.getLong(KEY_SEED, -1);
+		long next = mPrefs.getLong(KEY_NEXT, -1);
+		long seed = mPrefs.getLong(KEY_SEED, -1);
 
 		try {
 			mGap = Integer.parseInt(mPrefs.getString("pingGap", "45"));
@@ -85,11 +84,11 @@ public class PingService extends Service {
 		}
 
 		// First do a quick check to see if next ping is still in the future...
-		if (NEXT > launchTime) {
+		if (next > launchTime) {
 			// note: if we already set an alarm for this ping, it's
 			// no big deal because this set will cancel the old one
 			// ie the system enforces only one alarm at a time per setter
-			setAlarm(NEXT);
+			setAlarm(next);
 			wl.release();
 			this.stopSelf();
 			return;
@@ -97,8 +96,12 @@ public class PingService extends Service {
 
 		// If we make it here then it's time to do something
 		// ---------------------
-		if (NEXT == -1 || SEED == -1) { // then need to recalc from beg.
-			NEXT = nextping(prevping(launchTime, mGap), mGap);
+		PingCheckpoints checkpoints = null;
+		if (next == -1 || seed == -1) { // then need to recalc from beg.
+			checkpoints = PingCheckpoints.load(mPrefs, mGap);
+			mSchedule = PingSchedule.after(launchTime, mGap, checkpoints);
+		} else {
+			mSchedule = new PingSchedule(next, seed, mGap);
 		}
 
 		pingsDB = new PingsDbAdapter(this);
@@ -107,30 +110,30 @@ public class PingService extends Service {
 		// First, if we missed any pings by more than $retrothresh seconds for
 		// no
 		// apparent reason, then assume the computer was off and auto-log them.
-		while (NEXT < launchTime - RETROTHRESH) {
-			logPing(NEXT, "", Arrays.asList(new String[] { "OFF" }));
-			NEXT = nextping(NEXT, mGap);
-		}
+		long[] missed = mSchedule.drain(launchTime - RETROTHRESH);
+		if (LOCAL_LOGV) Log.v(TAG, "onCreate: backfilling " + missed.length + " OFF pings");
+		pingsDB.createTaggedPings(missed, "OFF", mGap);
 		// Next, ping for any pings in the last retrothresh seconds.
 		do {
-			while (NEXT <= now()) {
-				if (NEXT < now() - RETROTHRESH) {
-					logPing(NEXT, "", Arrays.asList(new String[] { "OFF" }));
+			while (mSchedule.peek() <= now()) {
+				long ping = mSchedule.next();
+				if (ping < now() - RETROTHRESH) {
+					logPing(ping, "", Arrays.asList(new String[] { "OFF" }));
 				} else {
 					String tag = (mNotify) ? "" : "OFF";
-					long rowID = logPing(NEXT, "", Arrays.asList(new String[] { tag }));
-					sendNote(NEXT, rowID);
+					long rowID = logPing(ping, "", Arrays.asList(new String[] { tag }));
+					sendNote(ping, rowID);
 				}
-				NEXT = nextping(NEXT, mGap);
 			}
-		} while (NEXT <= now());
+		} while (mSchedule.peek() <= now());
 
 		SharedPreferences.Editor editor = mPrefs.edit();
-		editor.putLong(KEY_NEXT, NEXT);
-		editor.putLong(KEY_SEED, SEED);
+		editor.putLong(KEY_NEXT, mSchedule.peek());
+		editor.putLong(KEY_SEED, mSchedule.peekSeed());
+		if (checkpoints != null) checkpoints.save(editor);
 		editor.commit();
 
-		setAlarm(NEXT);
+		setAlarm(mSchedule.peek());
 		pingsDB.close();
 		wl.release();
 		this.stopSelf();
@@ -224,61 +227,6 @@ public class PingService extends Service {
 		alarum.set(AlarmManager.RTC_WAKEUP, PING * 1000, PendingIntent.getBroadcast(this, 0, alit, 0));
 	}
 
-	private static final long IA = 16807;
-	private static final long IM = 2147483647;
-	private static final long INITSEED = 666;
-
-	/* *********************** *
-	 * Random number generator * ***********************
-	 */
-
-	// Returns a random integer in [1,$IM-1]; changes $seed, ie, RNG state.
-	// (This is ran0 from Numerical Recipes and has a period of ~2 billion.)
-	private static long ran0() {
-		SEED = IA * SEED % IM;
-		return SEED;
-	}
-
-	// Returns a U(0,1) random number.
-	private static double ran01() {
-		return ran0() / (IM * 1.0);
-	}
-
-	// Returns a random number drawn from an exponential
-	// distribution with mean gap. Gap is in minutes, we
-	// want seconds, so multiply by 60.
-	public static double exprand(int gap) {
-		return -1 * gap * 60 * Math.log(ran01());
-	}
-
-	// Takes previous ping time, returns random next ping time (unix time).
-	// NB: this has the side effect of changing the RNG state ($seed)
-	// and so should only be called once per next ping to calculate,
-	// after calling prevping.
-	public static long nextping(long prev, int gap) {
-		if (TPController.DEBUG) return now() + 60;
-		return Math.max(prev + 1, Math.round(prev + exprand(gap)));
-	}
-
-	// Computes the last scheduled ping time before time t.
-	public static long prevping(long t, int gap) {
-		SEED = INITSEED;
-		// Starting at the beginning of time, walk forward computing next pings
-		// until the next ping is >= t.
-		final int TUES = 1261198800; // some random time more recent than that..
-		final int BOT = 1184083200; // start at the birth of timepie!
-		long nxt = TPController.DEBUG ? TUES : BOT;
-		long lst = nxt;
-		long lstseed = SEED;
-		while (nxt < t) {
-			lst = nxt;
-			lstseed = SEED;
-			nxt = nextping(nxt, gap);
-		}
-		SEED = lstseed;
-		return lst;
-	}
-
 	@Override
 	public IBinder onBind(Intent intent) {
 		return mBinder;
@@ -0,0 +1,124 @@
+package bsoule.tagtime;
+
+import java.text.DateFormatSymbols;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/*
+ * Formats ping times as "yyyy.MM.dd HH:mm:ss", optionally followed by the
+ * short weekday name, without allocating. Output goes into a caller supplied
+ * char[] or StringBuilder.
+ *
+ * Consecutive pings mostly fall on the same day, so the date part (and the
+ * weekday) is cached for the current local day and only the time of day is
+ * written for each ping. Local time is the UTC time plus the zone offset at
+ * that instant, so days with a daylight saving change come out like they
+ * would with SimpleDateFormat.
+ *
+ * Not thread safe, each thread needs its own instance.
+ */
+public class PingTimeFormatter {
+
+	// "yyyy.MM.dd" plus the separator, then "HH:mm:ss"
+	private static final int DATE_LENGTH = 11;
+	private static final int TIME_LENGTH = 8;
+
+	private final TimeZone mZone = TimeZone.getDefault();
+	private final Calendar mCal = Calendar.getInstance(mZone);
+	private final String[] mWeekdays;
+
+	private final char[] mBuf;
+	private final int mMaxLength;
+	// Local day (days since the epoch) currently in mBuf, and the length of
+	// the output for that day
+	private long mDay = Long.MIN_VALUE;
+	private int mLength = DATE_LENGTH + TIME_LENGTH;
+
+	/**
+	 * @param separator
+	 *            Character between the date and the time, e.g. ' ' or '\n'.
+	 * @param weekday
+	 *            Whether to append the short weekday name, as in the
+	 *            "EEE" pattern of SimpleDateFormat.
+	 */
+	public PingTimeFormatter(char separator, boolean weekday) {
+		int length = DATE_LENGTH + TIME_LENGTH;
+		if (weekday) {
+			mWeekdays = new DateFormatSymbols(Locale.getDefault()).getShortWeekdays();
+			int longest = 0;
+			for (String w : mWeekdays)
+				longest = Math.max(longest, w.length());
+			length += 1 + longest;
+		} else {
+			mWeekdays = null;
+		}
+		mBuf = new char[length];
+		mBuf[DATE_LENGTH - 1] = separator;
+		mBuf[DATE_LENGTH + 2] = ':';
+		mBuf[DATE_LENGTH + 5] = ':';
+		mMaxLength = length;
+	}
+
+	/** Returns the largest number of chars format() writes. */
+	public int maxLength() {
+		return mMaxLength;
+	}
+
+	/**
+	 * Writes the formatted ping time into buf at offset.
+	 *
+	 * @return The number of chars written.
+	 */
+	public int format(long pingtime, char[] buf, int offset) {
+		int len = update(pingtime);
+		System.arraycopy(mBuf, 0, buf, offset, len);
+		return len;
+	}
+
+	/** Appends the formatted ping time to sb. */
+	public void format(long pingtime, StringBuilder sb) {
+		int len = update(pingtime);
+		sb.append(mBuf, 0, len);
+	}
+
+	/** Fills mBuf for the given ping time and returns its length. */
+	private int update(long pingtime) {
+		long local = pingtime + mZone.getOffset(pingtime * 1000) / 1000;
+		long day = local / 86400;
+		if (local < 0 && day * 86400 != local) day--;
+		if (day != mDay) setDay(pingtime, day);
+		int secs = (int) (local - day * 86400);
+		put2(DATE_LENGTH, secs / 3600);
+		put2(DATE_LENGTH + 3, secs / 60 % 60);
+		put2(DATE_LENGTH + 6, secs % 60);
+		return mLength;
+	}
+
+	/** Writes the date and weekday of the ping into mBuf. */
+	private void setDay(long pingtime, long day) {
+		mCal.setTimeInMillis(pingtime * 1000);
+		int year = mCal.get(Calendar.YEAR);
+		mBuf[0] = (char) ('0' + year / 1000 % 10);
+		mBuf[1] = (char) ('0' + year / 100 % 10);
+		put2(2, year % 100);
+		mBuf[4] = '.';
+		put2(5, mCal.get(Calendar.MONTH) + 1);
+		mBuf[7] = '.';
+		put2(8, mCal.get(Calendar.DAY_OF_MONTH));
+		int len = DATE_LENGTH + TIME_LENGTH;
+		if (mWeekdays != null) {
+			String w = mWeekdays[mCal.get(Calendar.DAY_OF_WEEK)];
+			mBuf[len++] = ' ';
+			w.getChars(0, w.length(), mBuf, len);
+			len += w.length();
+		}
+		mDay = day;
+		mLength = len;
+	}
+
+	private void put2(int pos, int value) {
+		mBuf[pos] = (char) ('0' + value / 10);
+		mBuf[pos + 1] = (char) ('0' + value % 10);
+	}
+}
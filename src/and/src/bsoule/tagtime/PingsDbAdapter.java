@@ -1,14 +1,21 @@
 package bsoule.tagtime;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 public class PingsDbAdapter {
@@ -28,6 +35,11 @@ public class PingsDbAdapter {
 	public static final String KEY_TAGPING = "tag_ping";
 	public static final String KEY_PID = "ping_id";
 	public static final String KEY_TID = "tag_id";
+	// Space separated tag list returned by fetchAllPingsWithTags()
+	public static final String KEY_TAGS = "tags";
+	// Table for tagging counts by hour of the week
+	public static final String KEY_HOUR = "how";
+	public static final String KEY_COUNT = "count";
 
 	private DatabaseHelper mDbHelper;
 	private SQLiteDatabase mDb;
@@ -43,15 +55,63 @@ public class PingsDbAdapter {
 	// a tagging is a ping and a tag
 	private static final String CREATE_TAGPINGS = "create table tag_ping (_id integer primary key autoincrement, "
 			+ "ping_id integer not null, tag_id integer not null," + "UNIQUE (ping_id, tag_id));";
+	// taggings are also looked up by tag, the UNIQUE index only serves pings
+	private static final String CREATE_TAGPINGS_TID_INDEX = "create index if not exists tag_ping_tag_id "
+			+ "on tag_ping (tag_id, ping_id);";
+	// number of pings with a tag in each hour of the week (0 is Sunday 0:00
+	// local time), used for suggesting tags
+	private static final String CREATE_TAG_HOUR_STATS = "create table if not exists tag_hour_stats ("
+			+ "how integer not null, tag_id integer not null, count integer not null, PRIMARY KEY (how, tag_id));";
+	// hour of the week of a ping, computed like hourOfWeek()
+	private static final String SQL_HOUR_OF_WEEK = "(CAST(strftime('%w', ping, 'unixepoch', 'localtime') AS integer) * 24"
+			+ " + CAST(strftime('%H', ping, 'unixepoch', 'localtime') AS integer))";
 
-	private static final String DATABASE_NAME = "timepiedata";
+	// pings with their tags joined into a single string, one row per ping
+	private static final String SELECT_PINGS_WITH_TAGS = "SELECT _id, ping, notes, period, "
+			+ "(SELECT group_concat(tags.tag, ' ') FROM tag_ping JOIN tags ON tags._id = tag_ping.tag_id "
+			+ "WHERE tag_ping.ping_id = pings._id) AS tags FROM pings";
+
+	static final String DATABASE_NAME = "timepiedata";
 	private static final String PINGS_TABLE = "pings";
 	private static final String TAGS_TABLE = "tags";
 	private static final String TAG_PING_TABLE = "tag_ping";
-	private static final int DATABASE_VERSION = 6;
+	private static final String TAG_HOUR_STATS_TABLE = "tag_hour_stats";
+	private static final int DATABASE_VERSION = 8;
 
 	private final Context mCtx;
 
+	// Compiled statements for the hot paths, indexed by the STMT_ constants.
+	// They belong to the current connection and are released on close().
+	private static final int STMT_NEW_PING = 0;
+	private static final int STMT_NEW_TAG = 1;
+	private static final int STMT_NEW_TAGPING = 2;
+	private static final int STMT_GET_TID = 3;
+	private static final int STMT_IS_TAGPING = 4;
+	private static final int STMT_UPDATE_TAGCACHE = 5;
+	private static final int STMT_ADJUST_TAGCACHE = 6;
+	private static final int STMT_PING_TIME = 7;
+	private static final int STMT_ADD_HOUR_STAT = 8;
+	private static final int STMT_ADJUST_HOUR_STAT = 9;
+	// Recounts the uses of a tag, bound to the tag id twice
+	static final String SQL_UPDATE_TAGCACHE = "UPDATE " + TAGS_TABLE + " SET " + KEY_USED_CACHE
+			+ " = (SELECT COUNT(_id) FROM " + TAG_PING_TABLE + " WHERE " + KEY_TID + " = ?) WHERE " + KEY_ROWID
+			+ " = ?";
+	private static final String[] STATEMENTS = {
+			"INSERT INTO " + PINGS_TABLE + " (" + KEY_PING + ", " + KEY_NOTES + ", " + KEY_PERIOD + ") VALUES (?, ?, ?)",
+			"INSERT INTO " + TAGS_TABLE + " (" + KEY_TAG + ", " + KEY_USED_CACHE + ") VALUES (?, 0)",
+			"INSERT INTO " + TAG_PING_TABLE + " (" + KEY_PID + ", " + KEY_TID + ") VALUES (?, ?)",
+			"SELECT " + KEY_ROWID + " FROM " + TAGS_TABLE + " WHERE " + KEY_TAG + " = ?",
+			"SELECT COUNT(*) FROM " + TAG_PING_TABLE + " WHERE " + KEY_PID + " = ? AND " + KEY_TID + " = ?",
+			SQL_UPDATE_TAGCACHE,
+			"UPDATE " + TAGS_TABLE + " SET " + KEY_USED_CACHE + " = " + KEY_USED_CACHE + " + ? WHERE " + KEY_ROWID
+					+ " = ?",
+			"SELECT " + KEY_PING + " FROM " + PINGS_TABLE + " WHERE " + KEY_ROWID + " = ?",
+			"INSERT OR IGNORE INTO " + TAG_HOUR_STATS_TABLE + " (" + KEY_HOUR + ", " + KEY_TID + ", " + KEY_COUNT
+					+ ") VALUES (?, ?, 0)",
+			"UPDATE " + TAG_HOUR_STATS_TABLE + " SET " + KEY_COUNT + " = " + KEY_COUNT + " + ? WHERE " + KEY_HOUR
+					+ " = ? AND " + KEY_TID + " = ?" };
+	private final SQLiteStatement[] mStatements = new SQLiteStatement[STATEMENTS.length];
+
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 
 		DatabaseHelper(Context context) {
@@ -63,6 +123,8 @@ public class PingsDbAdapter {
 			db.execSQL(CREATE_PINGS);
 			db.execSQL(CREATE_TAGS);
 			db.execSQL(CREATE_TAGPINGS);
+			db.execSQL(CREATE_TAGPINGS_TID_INDEX);
+			db.execSQL(CREATE_TAG_HOUR_STATS);
 		}
 
 		@Override
@@ -73,6 +135,7 @@ public class PingsDbAdapter {
 				db.execSQL("DROP TABLE IF EXISTS pings");
 				db.execSQL("DROP TABLE IF EXISTS tags");
 				db.execSQL("DROP TABLE IF EXISTS tag_ping");
+				db.execSQL("DROP TABLE IF EXISTS tag_hour_stats");
 				onCreate(db);
 			} else {
 				if (oldVersion < 5 && newVersion >= 5) {
@@ -131,6 +194,27 @@ public class PingsDbAdapter {
 						db.endTransaction();
 					}
 				}
+
+				if (oldVersion < 7 && newVersion >= 7) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " indexing taggings by tag...");
+					db.execSQL(CREATE_TAGPINGS_TID_INDEX);
+				}
+
+				if (oldVersion < 8 && newVersion >= 8) {
+					Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+							+ " counting taggings by hour of the week...");
+					db.beginTransaction();
+					try {
+						db.execSQL(CREATE_TAG_HOUR_STATS);
+						db.execSQL("INSERT INTO tag_hour_stats (how, tag_id, count) SELECT " + SQL_HOUR_OF_WEEK
+								+ " AS h, tag_id, COUNT(*) FROM tag_ping JOIN pings ON pings._id = tag_ping.ping_id "
+								+ "GROUP BY h, tag_id");
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				}
 			}
 		}
 	}
@@ -140,7 +224,12 @@ public class PingsDbAdapter {
 	}
 
 	protected void deleteAllData() {
+		releaseStatements();
 		mDbHelper.onUpgrade(mDb, 1, DATABASE_VERSION);
+		TagDictionary.getInstance().clear();
+		TagCompletionIndex.getInstance().clear();
+		PingMonthIndex.getInstance().clear();
+		BeeminderStatus.getInstance().invalidateAll();
 	}
 
 	public PingsDbAdapter open() throws SQLException {
@@ -150,9 +239,94 @@ public class PingsDbAdapter {
 	}
 
 	public void close() {
+		releaseStatements();
 		mDbHelper.close();
 	}
 
+	/**
+	 * Returns the compiled statement with the given STMT_ index, compiling it
+	 * on first use. Callers must synchronize on the returned statement while
+	 * binding and executing it.
+	 */
+	private SQLiteStatement getStatement(int which) {
+		synchronized (mStatements) {
+			if (mStatements[which] == null) mStatements[which] = mDb.compileStatement(STATEMENTS[which]);
+			return mStatements[which];
+		}
+	}
+
+	/**
+	 * Returns the process-wide tag dictionary, loading it from the tags table
+	 * if this is the first access since the process started or since the data
+	 * was deleted.
+	 */
+	private TagDictionary getTagDictionary() {
+		TagDictionary dict = TagDictionary.getInstance();
+		synchronized (dict) {
+			if (!dict.isLoaded()) {
+				Cursor c = fetchAllTags("ROWID");
+				try {
+					dict.load(c);
+				} finally {
+					c.close();
+				}
+			}
+		}
+		return dict;
+	}
+
+	/**
+	 * Returns the process-wide tag completion index, loading it from the tags
+	 * table if this is the first access since the process started or since
+	 * the data was deleted.
+	 */
+	private TagCompletionIndex getTagCompletionIndex() {
+		TagCompletionIndex index = TagCompletionIndex.getInstance();
+		synchronized (index) {
+			if (!index.isLoaded()) {
+				Cursor c = mDb.query(TAGS_TABLE, new String[] { KEY_TAG, KEY_USED_CACHE }, null, null, null, null,
+						KEY_TAG);
+				try {
+					index.load(c);
+				} finally {
+					c.close();
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the process-wide per-month ping counts, loading them with one
+	 * aggregate query if this is the first access since the process started
+	 * or since pings were deleted. Scans the whole pings table when loading,
+	 * so the first call should not be made on the UI thread.
+	 */
+	public PingMonthIndex getMonthIndex() {
+		PingMonthIndex index = PingMonthIndex.getInstance();
+		synchronized (index) {
+			if (!index.isLoaded()) {
+				Cursor c = mDb.rawQuery("SELECT strftime('%Y-%m', " + KEY_PING + ", 'unixepoch', 'localtime') AS month, "
+						+ "COUNT(*) FROM " + PINGS_TABLE + " GROUP BY month", null);
+				try {
+					index.load(c);
+				} finally {
+					c.close();
+				}
+			}
+		}
+		return index;
+	}
+
+	private void releaseStatements() {
+		synchronized (mStatements) {
+			for (int i = 0; i < mStatements.length; i++) {
+				if (mStatements[i] != null) mStatements[i].close();
+				mStatements[i] = null;
+			}
+		}
+	}
+
 	// =============== Methods for the Pings table =====================
 	/**
 	 * Creates a ping with the supplied time and notes. Also creates ping/tag
@@ -164,16 +338,89 @@ public class PingsDbAdapter {
 		if (!updateTaggings(pid, tags)) {
 			Log.e(TAG, "createPing: error creating the tag-ping entries");
 		}
+		if (pid >= 0) {
+			// The index must only see committed pings. Inside a caller's
+			// transaction the insert may still be rolled back, so the months
+			// are recounted on next use instead.
+			if (mDb.inTransaction()) PingMonthIndex.getInstance().clear();
+			else PingMonthIndex.getInstance().addPing(pingtime);
+		}
 		return pid;
 	}
 
+	/**
+	 * Logs a batch of pings tagged only with the given tag in a single
+	 * transaction. Used to backfill the pings missed while the device was off.
+	 * Ping times that are already in the table are skipped.
+	 * 
+	 * @return the number of pings inserted
+	 */
+	public int createTaggedPings(long[] pingtimes, String tag, int period) {
+		if (LOCAL_LOGV) Log.v(TAG, "createTaggedPings(" + pingtimes.length + ", " + tag + ")");
+		if (pingtimes.length == 0) return 0;
+		int inserted = 0;
+		long[] insertedTimes = new long[pingtimes.length];
+		boolean committed = false;
+		mDb.beginTransaction();
+		try {
+			long tid = getOrMakeNewTID(tag);
+			SQLiteStatement pingStmt = getStatement(STMT_NEW_PING);
+			SQLiteStatement tagPingStmt = getStatement(STMT_NEW_TAGPING);
+			synchronized (pingStmt) {
+				synchronized (tagPingStmt) {
+					for (long pingtime : pingtimes) {
+						long pid;
+						try {
+							pingStmt.bindLong(1, pingtime);
+							pingStmt.bindString(2, "");
+							pingStmt.bindLong(3, period);
+							pid = pingStmt.executeInsert();
+						} catch (SQLException e) {
+							Log.w(TAG, "createTaggedPings: ping at " + pingtime + " already exists");
+							continue;
+						}
+						tagPingStmt.bindLong(1, pid);
+						tagPingStmt.bindLong(2, tid);
+						tagPingStmt.executeInsert();
+						adjustHourStat(hourOfWeek(pingtime), tid, 1);
+						insertedTimes[inserted++] = pingtime;
+					}
+				}
+			}
+			adjustTagCache(tid, inserted);
+			mDb.setTransactionSuccessful();
+			committed = true;
+		} finally {
+			mDb.endTransaction();
+			// A rolled back transaction may have taken a new tag with it
+			if (!committed) {
+				TagDictionary.getInstance().clear();
+				TagCompletionIndex.getInstance().clear();
+			}
+		}
+		if (committed) {
+			PingMonthIndex index = PingMonthIndex.getInstance();
+			for (int i = 0; i < inserted; i++)
+				index.addPing(insertedTimes[i]);
+		}
+		return inserted;
+	}
+
 	/** Internal function to insert a new ping into the pings table */
 	private long newPing(long pingtime, String pingnotes, int period) {
-		ContentValues initialValues = new ContentValues();
-		initialValues.put(KEY_PING, pingtime);
-		initialValues.put(KEY_NOTES, pingnotes);
-		initialValues.put(KEY_PERIOD, period);
-		return mDb.insert(PINGS_TABLE, null, initialValues);
+		SQLiteStatement stmt = getStatement(STMT_NEW_PING);
+		synchronized (stmt) {
+			stmt.bindLong(1, pingtime);
+			if (pingnotes == null) stmt.bindNull(2);
+			else stmt.bindString(2, pingnotes);
+			stmt.bindLong(3, period);
+			try {
+				return stmt.executeInsert();
+			} catch (SQLException e) {
+				Log.e(TAG, "newPing: error inserting ping at " + pingtime + ": " + e.getMessage());
+				return -1;
+			}
+		}
 	}
 
 	/**
@@ -181,7 +428,10 @@ public class PingsDbAdapter {
 	 * not update ping/tag pairs.
 	 */
 	public boolean deletePing(long pingid) {
-		return mDb.delete(PINGS_TABLE, KEY_ROWID + "=" + pingid, null) > 0;
+		boolean ret = mDb.delete(PINGS_TABLE, KEY_ROWID + "=" + pingid, null) > 0;
+		// Rare enough to just recount the months on next use
+		if (ret) PingMonthIndex.getInstance().clear();
+		return ret;
 	}
 
 	/**
@@ -201,6 +451,33 @@ public class PingsDbAdapter {
 		}
 	}
 
+	/**
+	 * Queries the database for all pings together with their space separated
+	 * tag lists, in a single query. The tag list column (KEY_TAGS) is null for
+	 * pings without tags.
+	 * 
+	 * @param reverse
+	 *            Returns pings in reverse order of their ping times.
+	 */
+	public Cursor fetchAllPingsWithTags(boolean reverse) {
+		return mDb.rawQuery(SELECT_PINGS_WITH_TAGS + " ORDER BY " + KEY_PING + (reverse ? " DESC" : " ASC"), null);
+	}
+
+	/**
+	 * Returns one page of pings with their tag lists, newest first: at most
+	 * limit pings from strictly before the given ping time. Pages are keyed
+	 * on the ping time, so each page is a range scan of the ping index no
+	 * matter how deep into the history it is.
+	 * 
+	 * @param before
+	 *            Ping time of the last ping of the previous page, or
+	 *            Long.MAX_VALUE for the first page.
+	 */
+	public Cursor fetchPingsWithTagsBefore(long before, int limit) {
+		return mDb.rawQuery(SELECT_PINGS_WITH_TAGS + " WHERE " + KEY_PING + " < " + before + " ORDER BY " + KEY_PING
+				+ " DESC LIMIT " + limit, null);
+	}
+
 	/**
 	 * Update the indicated ping using the details provided.
 	 * 
@@ -223,10 +500,16 @@ public class PingsDbAdapter {
 	 */
 	public long newTag(String tag) throws SQLException {
 		if (LOCAL_LOGV) Log.v(TAG, "newTag(" + tag + ")");
-		ContentValues initialValues = new ContentValues();
-		initialValues.put(KEY_TAG, tag);
-		initialValues.put(KEY_USED_CACHE, 0);
-		return mDb.insertOrThrow(TAGS_TABLE, null, initialValues);
+		TagDictionary dict = getTagDictionary();
+		long tid;
+		SQLiteStatement stmt = getStatement(STMT_NEW_TAG);
+		synchronized (stmt) {
+			stmt.bindString(1, tag);
+			tid = stmt.executeInsert();
+		}
+		dict.put(tid, tag);
+		TagCompletionIndex.getInstance().add(tag, 0);
+		return tid;
 	}
 
 	/**
@@ -234,28 +517,26 @@ public class PingsDbAdapter {
 	 * creates a new one in the tags table and returns its ID.
 	 */
 	public long getOrMakeNewTID(String tag) {
-		long tid;
+		long tid = getTID(tag);
+		if (tid != -1) return tid;
 		try {
 			tid = newTag(tag);
 		} catch (SQLException e) {
-			tid = getTID(tag);
+			// The tag exists even though the dictionary missed it
+			Log.w(TAG, "getOrMakeNewTID: tag " + tag + " was missing from the dictionary");
+			tid = queryTID(tag);
+			if (tid != -1) getTagDictionary().put(tid, tag);
 		}
 		return tid;
 	}
 
 	/**
-	 * Queries the tag database and returns the String name of the tag with the
-	 * given id.
+	 * Returns the String name of the tag with the given id, or an empty string
+	 * if there is no such tag.
 	 */
 	public String getTagName(long tid) {
-		String ret = "";
-		Cursor c = mDb.query(TAGS_TABLE, new String[] { KEY_TAG }, KEY_ROWID + "=" + tid, null, null, null, null);
-		if (c.getCount() > 0) {
-			c.moveToFirst();
-			ret = c.getString(c.getColumnIndex(KEY_TAG));
-		}
-		c.close();
-		return ret;
+		String ret = getTagDictionary().getName(tid);
+		return (ret != null) ? ret : "";
 	}
 
 	/**
@@ -268,18 +549,34 @@ public class PingsDbAdapter {
 	public long getTID(String tag) {
 		if (LOCAL_LOGV) Log.v(TAG, "getTID(" + tag + ")");
 		// return -1 if not found
+		return getTagDictionary().getId(tag);
+	}
+
+	/** Looks up the id of a tag in the database, bypassing the dictionary. */
+	private long queryTID(String tag) {
 		long tid = -1;
-		Cursor cursor = mDb.query(TAGS_TABLE, new String[] { KEY_ROWID, KEY_TAG }, KEY_TAG + "='" + tag + "'", null,
-				null, null, null, null);
-		if (LOCAL_LOGV) Log.v(TAG, "getTID: queried for tag=" + tag);
-		if (cursor.getCount() > 0) {
-			cursor.moveToFirst();
-			tid = cursor.getLong(cursor.getColumnIndex(KEY_ROWID));
-		}
-		cursor.close();
+		SQLiteStatement stmt = getStatement(STMT_GET_TID);
+		synchronized (stmt) {
+			stmt.bindString(1, tag);
+			try {
+				tid = stmt.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				// no such tag
+			}
+		}
+		if (LOCAL_LOGV) Log.v(TAG, "queryTID: queried for tag=" + tag);
 		return tid;
 	}
 
+	/**
+	 * Returns up to max existing tags that start with the given prefix, most
+	 * used first. Only the first call in a process queries the database, so
+	 * this is cheap enough to run on every keystroke.
+	 */
+	public String[] completeTag(String prefix, int max) {
+		return getTagCompletionIndex().complete(prefix, max);
+	}
+
 	/**
 	 * Returns a Cursor for all tags in the database, sorted by their use
 	 * frequency
@@ -327,7 +624,12 @@ public class PingsDbAdapter {
 		}
 		ContentValues args = new ContentValues();
 		args.put(KEY_TAG, newtag);
-		return mDb.update(TAGS_TABLE, args, KEY_ROWID + "=" + tagid, null) > 0;
+		boolean updated = mDb.update(TAGS_TABLE, args, KEY_ROWID + "=" + tagid, null) > 0;
+		if (updated) {
+			getTagDictionary().put(tagid, newtag);
+			TagCompletionIndex.getInstance().rename(oldtag, newtag);
+		}
+		return updated;
 	}
 
 	/**
@@ -355,10 +657,12 @@ public class PingsDbAdapter {
 	 * identical one already exists
 	 */
 	public long newTagPing(long pingid, long tagid) throws Exception {
-		ContentValues init = new ContentValues();
-		init.put(KEY_PID, pingid);
-		init.put(KEY_TID, tagid);
-		return mDb.insertOrThrow(TAG_PING_TABLE, null, init);
+		SQLiteStatement stmt = getStatement(STMT_NEW_TAGPING);
+		synchronized (stmt) {
+			stmt.bindLong(1, pingid);
+			stmt.bindLong(2, tagid);
+			return stmt.executeInsert();
+		}
 	}
 
 	/**
@@ -366,11 +670,12 @@ public class PingsDbAdapter {
 	 * corresponding table
 	 */
 	public boolean isTagPing(long pingid, long tagid) {
-		Cursor c = mDb.query(TAG_PING_TABLE, new String[] { KEY_ROWID }, KEY_PID + "=" + pingid + " AND " + KEY_TID
-				+ "=" + tagid, null, null, null, null);
-		boolean ret = c.getCount() > 0;
-		c.close();
-		return ret;
+		SQLiteStatement stmt = getStatement(STMT_IS_TAGPING);
+		synchronized (stmt) {
+			stmt.bindLong(1, pingid);
+			stmt.bindLong(2, tagid);
+			return stmt.simpleQueryForLong() > 0;
+		}
 	}
 
 	/**
@@ -397,8 +702,38 @@ public class PingsDbAdapter {
 	 *            a tag id.
 	 */
 	public Cursor fetchTaggings(long id, String col_key) {
-		return mDb.query(true, TAG_PING_TABLE, new String[] { KEY_PID, KEY_TID }, col_key + " = " + id, null, null,
-				null, null, null);
+		return mDb.rawQuery(taggingsQuery(id, col_key), null);
+	}
+
+	/** SQL of fetchTaggings(id, col_key) */
+	static String taggingsQuery(long id, String col_key) {
+		return SQLiteQueryBuilder.buildQueryString(true, TAG_PING_TABLE, new String[] { KEY_PID, KEY_TID }, col_key
+				+ " = " + id, null, null, null, null);
+	}
+
+	/** SQL of the taggings of a tag counted by cleanupUnusedTags() */
+	static String tagUsesQuery(long tid) {
+		return SQLiteQueryBuilder.buildQueryString(false, TAG_PING_TABLE, new String[] { KEY_ROWID }, KEY_TID + "="
+				+ tid, null, null, null, null);
+	}
+
+	/**
+	 * Returns the (ping id, tag id) taggings of all the given pings in a
+	 * single query, ordered by ping id.
+	 */
+	public Cursor fetchTaggings(long[] pingIds) {
+		return mDb.query(TAG_PING_TABLE, new String[] { KEY_PID, KEY_TID }, KEY_PID + " IN (" + idList(pingIds) + ")",
+				null, null, null, KEY_PID);
+	}
+
+	/** Formats ids as a comma separated list for use in an IN (...) clause. */
+	static String idList(long[] ids) {
+		StringBuilder s = new StringBuilder(ids.length * 8);
+		for (int i = 0; i < ids.length; i++) {
+			if (i > 0) s.append(',');
+			s.append(ids[i]);
+		}
+		return s.toString();
 	}
 
 	/**
@@ -420,6 +755,29 @@ public class PingsDbAdapter {
 
 	}
 
+	/**
+	 * Returns the ids of the pings right before and right after the given one
+	 * in ping time, as { previous, next } with -1 where there is none. Both
+	 * are found through the index on ping times in a single query, so gaps
+	 * left in the ids by deletes or imports do not matter.
+	 */
+	public long[] fetchNeighborPings(long pingid) {
+		long[] ret = { -1, -1 };
+		Cursor c = mDb.rawQuery("SELECT (SELECT " + KEY_ROWID + " FROM " + PINGS_TABLE + " WHERE " + KEY_PING
+				+ " < p." + KEY_PING + " ORDER BY " + KEY_PING + " DESC LIMIT 1), (SELECT " + KEY_ROWID + " FROM "
+				+ PINGS_TABLE + " WHERE " + KEY_PING + " > p." + KEY_PING + " ORDER BY " + KEY_PING
+				+ " ASC LIMIT 1) FROM " + PINGS_TABLE + " p WHERE p." + KEY_ROWID + " = " + pingid, null);
+		try {
+			if (c.moveToFirst()) {
+				if (!c.isNull(0)) ret[0] = c.getLong(0);
+				if (!c.isNull(1)) ret[1] = c.getLong(1);
+			}
+		} finally {
+			c.close();
+		}
+		return ret;
+	}
+
 	// ===================== Compound methods using multiple tables ============
 
 	/**
@@ -498,13 +856,25 @@ public class PingsDbAdapter {
 
 	/** Updates usage counts for a specific tag in the database */
 	public void updateTagCache(long tid) {
-		Cursor count_cr = mDb.rawQuery("SELECT COUNT(_id) FROM tag_ping WHERE tag_id = ?",
-				new String[] { Long.toString(tid) });
-		count_cr.moveToFirst();
-		ContentValues uses_values = new ContentValues();
-		uses_values.put(KEY_USED_CACHE, count_cr.getInt(0));
-		count_cr.close();
-		mDb.update(TAGS_TABLE, uses_values, "_id = ?", new String[] { Long.toString(tid) });
+		SQLiteStatement stmt = getStatement(STMT_UPDATE_TAGCACHE);
+		synchronized (stmt) {
+			stmt.bindLong(1, tid);
+			stmt.bindLong(2, tid);
+			stmt.execute();
+		}
+		// The new count is not known here, the index reloads with it
+		TagCompletionIndex.getInstance().clear();
+	}
+
+	/** Adds delta to the cached usage count of a specific tag */
+	private void adjustTagCache(long tid, int delta) {
+		SQLiteStatement stmt = getStatement(STMT_ADJUST_TAGCACHE);
+		synchronized (stmt) {
+			stmt.bindLong(1, delta);
+			stmt.bindLong(2, tid);
+			stmt.execute();
+		}
+		TagCompletionIndex.getInstance().adjustUses(getTagName(tid), delta);
 	}
 
 	/**
@@ -523,36 +893,183 @@ public class PingsDbAdapter {
 	public boolean updateTaggings(long pingid, List<String> newTags) {
 		if (LOCAL_LOGV) Log.v(TAG, "updateTaggings(" + pingid + ")");
 
-		// Remove all the old tags.
-		mDb.delete(TAG_PING_TABLE, KEY_PID + "=" + pingid, null);
-
-		// Construct a list of tags for which usage count should be updated
-		List<String> cacheUpdates = new ArrayList<String>();
+		boolean committed = false;
+		mDb.beginTransaction();
 		try {
-			cacheUpdates = fetchTagNamesForPing(pingid);
-		} catch (Exception e) {
-			Log.w(TAG, "updateTaggings: Some problem getting tags for this ping!");
-			e.printStackTrace();
-		}
-		cacheUpdates.addAll(newTags);
-
-		// Now, insert new taggings
-		for (String t : newTags) {
-			if (t.trim().length() == 0) continue;
-			long tid = getOrMakeNewTID(t);
-			if (tid == -1) Log.e(TAG, "updateTaggings: ERROR: about to insert tid -1");
+			// Tags the ping currently has
+			Set<Long> oldTids = new HashSet<Long>();
+			Cursor c = fetchTaggings(pingid, KEY_PID);
 			try {
-				newTagPing(pingid, tid);
-			} catch (Exception e) {
-				Log.w(TAG, "updateTaggings: error inserting newTagPing(" + pingid + "," + tid + ") in updateTaggings()");
+				int idx = c.getColumnIndex(KEY_TID);
+				c.moveToFirst();
+				while (!c.isAfterLast()) {
+					oldTids.add(c.getLong(idx));
+					c.moveToNext();
+				}
+			} finally {
+				c.close();
+			}
+
+			// Tags it should have
+			Set<Long> newTids = new HashSet<Long>();
+			for (String t : newTags) {
+				if (t.trim().length() == 0) continue;
+				long tid = getOrMakeNewTID(t);
+				if (tid == -1) {
+					Log.e(TAG, "updateTaggings: ERROR: could not find or create tag " + t);
+					continue;
+				}
+				newTids.add(tid);
+			}
+
+			// Only touch the taggings that changed, adjusting usage counts as
+			// we go
+			int how = pingHourOfWeek(pingid);
+			for (long tid : oldTids) {
+				if (newTids.contains(tid)) continue;
+				if (deleteTagPing(pingid, tid)) {
+					adjustTagCache(tid, -1);
+					if (how >= 0) adjustHourStat(how, tid, -1);
+				}
+			}
+			for (long tid : newTids) {
+				if (oldTids.contains(tid)) continue;
+				try {
+					newTagPing(pingid, tid);
+					adjustTagCache(tid, 1);
+					if (how >= 0) adjustHourStat(how, tid, 1);
+				} catch (Exception e) {
+					Log.w(TAG, "updateTaggings: error inserting newTagPing(" + pingid + "," + tid + ") in updateTaggings()");
+				}
+			}
+			mDb.setTransactionSuccessful();
+			committed = true;
+		} finally {
+			mDb.endTransaction();
+			// A rolled back transaction may have taken new tags with it
+			if (!committed) {
+				TagDictionary.getInstance().clear();
+				TagCompletionIndex.getInstance().clear();
 			}
 		}
+		BeeminderStatus.getInstance().invalidate(pingid);
+		return committed;
+	}
+
+	// =============== Methods for the tag statistics table =====================
+
+	/** Returns the hour of the week of a ping time, 0 being Sunday 0:00. */
+	static int hourOfWeek(long pingtime) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(pingtime * 1000);
+		return (cal.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * 24 + cal.get(Calendar.HOUR_OF_DAY);
+	}
+
+	/** Returns the hour of the week of the given ping, or -1 if there is none. */
+	private int pingHourOfWeek(long pingid) {
+		SQLiteStatement stmt = getStatement(STMT_PING_TIME);
+		synchronized (stmt) {
+			stmt.bindLong(1, pingid);
+			try {
+				return hourOfWeek(stmt.simpleQueryForLong());
+			} catch (SQLiteDoneException e) {
+				return -1;
+			}
+		}
+	}
 
-		// Update usage counts for all tags affected
-		for (String tag : cacheUpdates) {
-			updateTagCache(getTID(tag));
+	/** Adds delta to the number of pings with a tag in an hour of the week */
+	private void adjustHourStat(int how, long tid, int delta) {
+		SQLiteStatement add = getStatement(STMT_ADD_HOUR_STAT);
+		SQLiteStatement adjust = getStatement(STMT_ADJUST_HOUR_STAT);
+		synchronized (add) {
+			add.bindLong(1, how);
+			add.bindLong(2, tid);
+			add.execute();
+		}
+		synchronized (adjust) {
+			adjust.bindLong(1, delta);
+			adjust.bindLong(2, how);
+			adjust.bindLong(3, tid);
+			adjust.execute();
 		}
-		return true;
+	}
+
+	/**
+	 * Suggests tags for a ping at the given time: first the tags of the ping
+	 * before it, then the tags used most often in the same hour of the week.
+	 * Reads only the previous ping and the precomputed counts for that hour,
+	 * never all the taggings.
+	 * 
+	 * @param previous
+	 *            Ids of the tags of the previous ping if the caller knows
+	 *            them better than the database, e.g. while they are queued
+	 *            for writing. May be null.
+	 * @return Up to max tag ids, best first.
+	 */
+	public List<Long> suggestTags(long pingtime, List<Long> previous, int max) {
+		List<Long> ret = new ArrayList<Long>();
+		if (previous != null) {
+			for (long tid : previous) {
+				if (ret.size() < max && !ret.contains(tid)) ret.add(tid);
+			}
+		}
+		Cursor c = (previous != null) ? null : mDb.rawQuery("SELECT " + KEY_TID + " FROM " + TAG_PING_TABLE + " WHERE " + KEY_PID + " = (SELECT "
+				+ KEY_ROWID + " FROM " + PINGS_TABLE + " WHERE " + KEY_PING + " < " + pingtime + " ORDER BY "
+				+ KEY_PING + " DESC LIMIT 1)", null);
+		if (c != null) {
+			try {
+				c.moveToFirst();
+				while (!c.isAfterLast() && ret.size() < max) {
+					ret.add(c.getLong(0));
+					c.moveToNext();
+				}
+			} finally {
+				c.close();
+			}
+		}
+		c = mDb.query(TAG_HOUR_STATS_TABLE, new String[] { KEY_TID }, KEY_HOUR + " = " + hourOfWeek(pingtime) + " AND "
+				+ KEY_COUNT + " > 0", null, null, null, KEY_COUNT + " DESC", Integer.toString(max));
+		try {
+			c.moveToFirst();
+			while (!c.isAfterLast() && ret.size() < max) {
+				long tid = c.getLong(0);
+				if (!ret.contains(tid)) ret.add(tid);
+				c.moveToNext();
+			}
+		} finally {
+			c.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Updates the taggings of several pings in a single transaction, as
+	 * updateTaggings(long, List) does for each of them.
+	 * 
+	 * @return true if all of them were committed, false if none were.
+	 */
+	public boolean updateTaggings(Map<Long, List<String>> pingTags) {
+		if (LOCAL_LOGV) Log.v(TAG, "updateTaggings(" + pingTags.size() + " pings)");
+
+		boolean committed = false;
+		mDb.beginTransaction();
+		try {
+			for (Map.Entry<Long, List<String>> e : pingTags.entrySet())
+				updateTaggings(e.getKey(), e.getValue());
+			mDb.setTransactionSuccessful();
+			committed = true;
+		} finally {
+			mDb.endTransaction();
+			if (!committed) {
+				TagDictionary.getInstance().clear();
+				TagCompletionIndex.getInstance().clear();
+			}
+		}
+		// States computed while the transaction was open saw the old taggings
+		for (long pingid : pingTags.keySet())
+			BeeminderStatus.getInstance().invalidate(pingid);
+		return committed;
 	}
 
 	/** Cleans up the tags database, removing all unused tags */
@@ -567,8 +1084,7 @@ public class PingsDbAdapter {
 		while (!c.isAfterLast()) {
 			long tagid = c.getLong(idx);
 			// Check ping tag pairs
-			Cursor tids = mDb.query(TAG_PING_TABLE, new String[] { KEY_ROWID }, KEY_TID + "=" + tagid, null, null,
-					null, null);
+			Cursor tids = mDb.rawQuery(tagUsesQuery(tagid), null);
 			int usecount = tids.getCount();
 			tids.close();
 
@@ -582,7 +1098,11 @@ public class PingsDbAdapter {
 			if (usecount == 0) {
 				if (LOCAL_LOGV) Log.i(TAG, "cleanupUnusedTags: removing tag " + c.getString(tagIdx)
 						+ " noone is using it.");
-				mDb.delete(TAGS_TABLE, KEY_ROWID + "=" + tagid, null);
+				if (mDb.delete(TAGS_TABLE, KEY_ROWID + "=" + tagid, null) > 0) {
+					mDb.delete(TAG_HOUR_STATS_TABLE, KEY_TID + "=" + tagid, null);
+					getTagDictionary().remove(tagid);
+					TagCompletionIndex.getInstance().remove(c.getString(tagIdx));
+				}
 			}
 			c.moveToNext();
 		}
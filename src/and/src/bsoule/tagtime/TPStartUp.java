@@ -13,8 +13,13 @@ public class TPStartUp extends BroadcastReceiver {
 	public void onReceive(Context context, Intent intent) {
 		// just make sure we are getting the right intent (better safe than sorry)
 		//String itclass = intent.get("intentclass");
-		if ( "android.intent.action.BOOT_COMPLETED".equals(intent.getAction()) ||
+		if ("android.intent.action.MY_PACKAGE_REPLACED".equals(intent.getAction())) {
+			// Updates clear the alarms of the app
+			BeeminderService.restoreDrain(context);
+		} else if ( "android.intent.action.BOOT_COMPLETED".equals(intent.getAction()) ||
 				intent.getBooleanExtra("ThisIntentIsTPStartUpClass",false) ) {
+			if ("android.intent.action.BOOT_COMPLETED".equals(intent.getAction()))
+				BeeminderService.restoreDrain(context);
 			ComponentName comp = new ComponentName(context.getPackageName(), PingService.class.getName());
 			ComponentName service = context.startService(new Intent().setComponent(comp));
 			if (null == service){
@@ -0,0 +1,118 @@
+package bsoule.tagtime;
+
+import android.content.Context;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.MultiAutoCompleteTextView;
+import android.widget.TextView;
+
+/*
+ * Drop-down suggestions for the tag text field in EditPing. Completions come
+ * from the tag completion index through PingsDbAdapter.completeTag(), so
+ * filtering a keystroke only does a binary search over the tag names.
+ */
+public class TagCompletionAdapter extends BaseAdapter implements Filterable {
+
+	// Number of completions offered for a prefix
+	private static final int MAX_COMPLETIONS = 8;
+
+	private final LayoutInflater mInflater;
+	private final PingsDbAdapter mDb;
+	private String[] mTags = new String[0];
+	private Filter mFilter = null;
+
+	/*
+	 * Splits the text into tags at whitespace, so completion applies to the
+	 * tag under the cursor and a space is added after a completed tag.
+	 */
+	public static class SpaceTokenizer implements MultiAutoCompleteTextView.Tokenizer {
+
+		public int findTokenStart(CharSequence text, int cursor) {
+			int i = cursor;
+			while (i > 0 && !Character.isWhitespace(text.charAt(i - 1)))
+				i--;
+			return i;
+		}
+
+		public int findTokenEnd(CharSequence text, int cursor) {
+			int i = cursor;
+			int len = text.length();
+			while (i < len && !Character.isWhitespace(text.charAt(i)))
+				i++;
+			return i;
+		}
+
+		public CharSequence terminateToken(CharSequence text) {
+			int i = text.length();
+			if (i > 0 && Character.isWhitespace(text.charAt(i - 1))) return text;
+			if (text instanceof Spanned) {
+				SpannableString sp = new SpannableString(text + " ");
+				TextUtils.copySpansFrom((Spanned) text, 0, text.length(), Object.class, sp, 0);
+				return sp;
+			}
+			return text + " ";
+		}
+	}
+
+	public TagCompletionAdapter(Context context, PingsDbAdapter db) {
+		mInflater = LayoutInflater.from(context);
+		mDb = db;
+	}
+
+	public int getCount() {
+		return mTags.length;
+	}
+
+	public Object getItem(int position) {
+		return mTags[position];
+	}
+
+	public long getItemId(int position) {
+		return position;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) convertView;
+		if (view == null) view = (TextView) mInflater.inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
+		view.setText(mTags[position]);
+		return view;
+	}
+
+	public Filter getFilter() {
+		if (mFilter == null) {
+			mFilter = new Filter() {
+				/* Runs on the filter thread */
+				@Override
+				protected FilterResults performFiltering(CharSequence prefix) {
+					FilterResults results = new FilterResults();
+					String[] tags = new String[0];
+					if (prefix != null && prefix.length() > 0) {
+						try {
+							tags = mDb.completeTag(prefix.toString(), MAX_COMPLETIONS);
+						} catch (IllegalStateException e) {
+							// The activity closed the database while filtering
+						}
+					}
+					results.values = tags;
+					results.count = tags.length;
+					return results;
+				}
+
+				@Override
+				protected void publishResults(CharSequence prefix, FilterResults results) {
+					mTags = (String[]) results.values;
+					if (results.count > 0) notifyDataSetChanged();
+					else notifyDataSetInvalidated();
+				}
+			};
+		}
+		return mFilter;
+	}
+}
@@ -0,0 +1,157 @@
+package bsoule.tagtime;
+
+import android.database.Cursor;
+
+/*
+ * Process-wide prefix index over tag names for completing tags as they are
+ * typed. Loaded once from the tags table by PingsDbAdapter and then kept up
+ * to date write-through by the adapter methods that create, rename or remove
+ * tags and that change their usage counts.
+ *
+ * Names are kept in a sorted String[] with the usage counts in a parallel
+ * array. The tags starting with a prefix form a contiguous range found by
+ * binary search, which is then scanned for the most used ones, so a lookup
+ * never touches the database.
+ */
+public class TagCompletionIndex {
+
+	private static final TagCompletionIndex sInstance = new TagCompletionIndex();
+
+	private String[] mNames = new String[64];
+	private int[] mUses = new int[64];
+	private int mCount = 0;
+	private boolean mLoaded = false;
+
+	public static TagCompletionIndex getInstance() {
+		return sInstance;
+	}
+
+	private TagCompletionIndex() {
+	}
+
+	public synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * Replaces the contents of the index with the (tag, used_cache) rows of
+	 * the given cursor. Loading is fastest if the rows are sorted by tag.
+	 */
+	public synchronized void load(Cursor c) {
+		clear();
+		int idxtag = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+		int idxuses = c.getColumnIndex(PingsDbAdapter.KEY_USED_CACHE);
+		c.moveToFirst();
+		while (!c.isAfterLast()) {
+			insert(c.getString(idxtag), c.getInt(idxuses));
+			c.moveToNext();
+		}
+		mLoaded = true;
+	}
+
+	/** Drops all entries. The next access through PingsDbAdapter reloads. */
+	public synchronized void clear() {
+		mNames = new String[mNames.length];
+		mCount = 0;
+		mLoaded = false;
+	}
+
+	/** Adds a newly created tag. */
+	public synchronized void add(String tag, int uses) {
+		if (!mLoaded) return;
+		insert(tag, uses);
+	}
+
+	public synchronized void remove(String tag) {
+		if (!mLoaded) return;
+		int i = indexOf(tag);
+		if (i < 0) return;
+		System.arraycopy(mNames, i + 1, mNames, i, mCount - i - 1);
+		System.arraycopy(mUses, i + 1, mUses, i, mCount - i - 1);
+		mCount--;
+		mNames[mCount] = null;
+	}
+
+	/** Renames a tag, keeping its usage count. */
+	public synchronized void rename(String oldtag, String newtag) {
+		if (!mLoaded) return;
+		int i = indexOf(oldtag);
+		int uses = (i >= 0) ? mUses[i] : 0;
+		remove(oldtag);
+		insert(newtag, uses);
+	}
+
+	/** Adds delta to the usage count of a tag. */
+	public synchronized void adjustUses(String tag, int delta) {
+		if (!mLoaded) return;
+		int i = indexOf(tag);
+		if (i >= 0) mUses[i] += delta;
+	}
+
+	/**
+	 * Returns up to max tags starting with prefix, most used first. Tags used
+	 * equally often are returned in alphabetical order. The prefix itself is
+	 * included if it is a complete tag.
+	 */
+	public synchronized String[] complete(String prefix, int max) {
+		if (max <= 0) return new String[0];
+		int start = indexOf(prefix);
+		if (start < 0) start = -(start + 1);
+		// Best matches so far, kept sorted by decreasing usage
+		int[] best = new int[max];
+		int found = 0;
+		for (int i = start; i < mCount && mNames[i].startsWith(prefix); i++) {
+			if (found == max && mUses[i] <= mUses[best[max - 1]]) continue;
+			int j = (found < max) ? found++ : max - 1;
+			while (j > 0 && mUses[best[j - 1]] < mUses[i]) {
+				best[j] = best[j - 1];
+				j--;
+			}
+			best[j] = i;
+		}
+		String[] res = new String[found];
+		for (int i = 0; i < found; i++)
+			res[i] = mNames[best[i]];
+		return res;
+	}
+
+	private void insert(String tag, int uses) {
+		int i = indexOf(tag);
+		if (i >= 0) {
+			mUses[i] = uses;
+			return;
+		}
+		i = -(i + 1);
+		if (mCount == mNames.length) {
+			String[] names = new String[mCount * 2];
+			int[] counts = new int[mCount * 2];
+			System.arraycopy(mNames, 0, names, 0, mCount);
+			System.arraycopy(mUses, 0, counts, 0, mCount);
+			mNames = names;
+			mUses = counts;
+		}
+		System.arraycopy(mNames, i, mNames, i + 1, mCount - i);
+		System.arraycopy(mUses, i, mUses, i + 1, mCount - i);
+		mNames[i] = tag;
+		mUses[i] = uses;
+		mCount++;
+	}
+
+	/**
+	 * Binary search for tag. Returns its index, or -(insertion point + 1) if
+	 * it is not present.
+	 */
+	private int indexOf(String tag) {
+		// Fast path for loading in sorted order
+		if (mCount > 0 && mNames[mCount - 1].compareTo(tag) < 0) return -(mCount + 1);
+		int lo = 0, hi = mCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = mNames[mid].compareTo(tag);
+			if (cmp < 0) lo = mid + 1;
+			else if (cmp > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+}
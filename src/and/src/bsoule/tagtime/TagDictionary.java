@@ -0,0 +1,128 @@
+package bsoule.tagtime;
+
+import java.util.HashMap;
+
+import android.database.Cursor;
+
+/*
+ * Process-wide map between tag ids and tag names. Loaded once from the tags
+ * table by PingsDbAdapter and then kept up to date write-through by the
+ * adapter methods that create, rename or remove tags, so resolving names and
+ * ids never needs a query.
+ *
+ * Ids are kept in a sorted long[] with the names in a parallel array, looked
+ * up by binary search. Tag ids are allocated in increasing order, so new tags
+ * almost always go at the end.
+ */
+public class TagDictionary {
+
+	private static final TagDictionary sInstance = new TagDictionary();
+
+	private long[] mIds = new long[64];
+	private String[] mNames = new String[64];
+	private int mCount = 0;
+	private final HashMap<String, Long> mByName = new HashMap<String, Long>();
+	private boolean mLoaded = false;
+
+	public static TagDictionary getInstance() {
+		return sInstance;
+	}
+
+	private TagDictionary() {
+	}
+
+	public synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * Replaces the contents of the dictionary with the (id, tag) rows of the
+	 * given cursor.
+	 */
+	public synchronized void load(Cursor c) {
+		clear();
+		int idxrow = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
+		int idxtag = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+		c.moveToFirst();
+		while (!c.isAfterLast()) {
+			put(c.getLong(idxrow), c.getString(idxtag));
+			c.moveToNext();
+		}
+		mLoaded = true;
+	}
+
+	/** Drops all entries. The next access through PingsDbAdapter reloads. */
+	public synchronized void clear() {
+		mCount = 0;
+		mNames = new String[mIds.length];
+		mByName.clear();
+		mLoaded = false;
+	}
+
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/** Returns the name of the tag with the given id, or null if unknown. */
+	public synchronized String getName(long tid) {
+		int i = indexOf(tid);
+		return (i >= 0) ? mNames[i] : null;
+	}
+
+	/** Returns the id of the tag with the given name, or -1 if unknown. */
+	public synchronized long getId(String tag) {
+		Long tid = mByName.get(tag);
+		return (tid != null) ? tid : -1;
+	}
+
+	public synchronized void put(long tid, String tag) {
+		int i = indexOf(tid);
+		if (i >= 0) {
+			mByName.remove(mNames[i]);
+			mNames[i] = tag;
+		} else {
+			i = -(i + 1);
+			if (mCount == mIds.length) {
+				long[] ids = new long[mCount * 2];
+				String[] names = new String[mCount * 2];
+				System.arraycopy(mIds, 0, ids, 0, mCount);
+				System.arraycopy(mNames, 0, names, 0, mCount);
+				mIds = ids;
+				mNames = names;
+			}
+			System.arraycopy(mIds, i, mIds, i + 1, mCount - i);
+			System.arraycopy(mNames, i, mNames, i + 1, mCount - i);
+			mIds[i] = tid;
+			mNames[i] = tag;
+			mCount++;
+		}
+		mByName.put(tag, tid);
+	}
+
+	public synchronized void remove(long tid) {
+		int i = indexOf(tid);
+		if (i < 0) return;
+		mByName.remove(mNames[i]);
+		System.arraycopy(mIds, i + 1, mIds, i, mCount - i - 1);
+		System.arraycopy(mNames, i + 1, mNames, i, mCount - i - 1);
+		mCount--;
+		mNames[mCount] = null;
+	}
+
+	/**
+	 * Binary search for tid. Returns its index, or -(insertion point + 1) if
+	 * it is not present.
+	 */
+	private int indexOf(long tid) {
+		// Fast path for the most recently created tag
+		if (mCount > 0 && mIds[mCount - 1] < tid) return -(mCount + 1);
+		int lo = 0, hi = mCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mIds[mid] < tid) lo = mid + 1;
+			else if (mIds[mid] > tid) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+}
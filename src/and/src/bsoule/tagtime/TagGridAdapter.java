@@ -0,0 +1,147 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import android.content.Context;
+import android.view.Gravity;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+
+/*
+ * Shows tags as rows of TagToggle buttons flowing left to right, for use in a
+ * ListView. Row breaks are computed from measured text widths, so views are
+ * only created for the rows on screen and recycled as the list scrolls,
+ * however many tags there are.
+ *
+ * The selection is kept as a set of tag ids owned by the caller. Toggles
+ * flip their own state when clicked, the caller's click listener is
+ * responsible for updating the set.
+ */
+public class TagGridAdapter extends BaseAdapter {
+
+	private final Context mContext;
+	private final Set<Long> mSelected;
+	private final OnClickListener mToggleListener;
+	private final TagToggle mMeasurer;
+	// Toggles taken out of recycled rows, reused before creating new ones
+	private final ArrayList<TagToggle> mSpareToggles = new ArrayList<TagToggle>();
+
+	private long[] mIds = new long[0];
+	private String[] mNames = new String[0];
+	private int[] mWidths = null;
+	// Row i shows the tags mRowStarts[i] up to mRowStarts[i + 1]
+	private int[] mRowStarts = new int[1];
+	private int mRows = 0;
+	private int mRowWidth = 0;
+
+	public TagGridAdapter(Context context, Set<Long> selected, OnClickListener toggleListener) {
+		mContext = context;
+		mSelected = selected;
+		mToggleListener = toggleListener;
+		mMeasurer = newToggle();
+	}
+
+	/** Replaces the tags shown, in display order. */
+	public void setTags(long[] ids, String[] names) {
+		mIds = ids;
+		mNames = names;
+		mWidths = null;
+		breakRows();
+		notifyDataSetChanged();
+	}
+
+	/** Sets the width available to a row, which can be known only after layout. */
+	public void setRowWidth(int width) {
+		if (width == mRowWidth) return;
+		mRowWidth = width;
+		breakRows();
+		notifyDataSetChanged();
+	}
+
+	private void breakRows() {
+		mRows = 0;
+		if (mRowWidth <= 0 || mIds.length == 0) return;
+		if (mWidths == null) {
+			mWidths = new int[mIds.length];
+			for (int i = 0; i < mIds.length; i++)
+				mWidths[i] = mMeasurer.measureTagWidth(mNames[i]);
+		}
+		int[] starts = new int[mIds.length + 1];
+		int used = 0;
+		for (int i = 0; i < mIds.length; i++) {
+			// Start a new row unless this is the first tag in it
+			if (i == 0 || used + mWidths[i] > mRowWidth) {
+				starts[mRows++] = i;
+				used = 0;
+			}
+			used += mWidths[i];
+		}
+		starts[mRows] = mIds.length;
+		mRowStarts = starts;
+	}
+
+	public int getCount() {
+		return mRows;
+	}
+
+	public Object getItem(int position) {
+		return position;
+	}
+
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isEnabled(int position) {
+		// Only the toggles inside the rows are clickable
+		return false;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		LinearLayout row;
+		if (convertView instanceof LinearLayout) {
+			row = (LinearLayout) convertView;
+		} else {
+			row = new LinearLayout(mContext);
+			row.setOrientation(LinearLayout.HORIZONTAL);
+			row.setGravity(Gravity.CENTER_HORIZONTAL);
+			row.setLayoutParams(new AbsListView.LayoutParams(AbsListView.LayoutParams.FILL_PARENT,
+					AbsListView.LayoutParams.WRAP_CONTENT));
+		}
+		int start = mRowStarts[position];
+		int n = mRowStarts[position + 1] - start;
+		while (row.getChildCount() > n) {
+			int last = row.getChildCount() - 1;
+			mSpareToggles.add((TagToggle) row.getChildAt(last));
+			row.removeViewAt(last);
+		}
+		while (row.getChildCount() < n) {
+			int spare = mSpareToggles.size();
+			row.addView((spare > 0) ? mSpareToggles.remove(spare - 1) : newToggle());
+		}
+		for (int i = 0; i < n; i++) {
+			TagToggle tog = (TagToggle) row.getChildAt(i);
+			tog.setText(mNames[start + i]);
+			tog.setTId(mIds[start + i]);
+			tog.setChecked(mSelected.contains(mIds[start + i]));
+		}
+		return row;
+	}
+
+	private TagToggle newToggle() {
+		TagToggle tog = new TagToggle(mContext, "", -1, false);
+		tog.setOnClickListener(mToggleListener);
+		return tog;
+	}
+}
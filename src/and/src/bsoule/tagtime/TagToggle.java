@@ -3,6 +3,7 @@ package bsoule.tagtime;
 import android.content.Context;
 import android.content.res.Resources;
 import android.util.AttributeSet;
+import android.util.FloatMath;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.Button;
 
@@ -10,6 +11,7 @@ public class TagToggle extends Button {
 
 	private boolean selected;
 	private long tagId;
+	private int minWidth = -1;
 	
 	public TagToggle(Context context) {
 		super(context);
@@ -64,4 +66,24 @@ public class TagToggle extends Button {
 	public boolean isSelected() {
 		return selected;
 	}
+
+	/**
+	 * Returns the width this toggle would be measured at when showing the
+	 * given tag, without changing its text or laying it out. Used to break
+	 * tags into rows before creating any views for them.
+	 */
+	public int measureTagWidth(String tag) {
+		if (minWidth < 0) {
+			// The minimum width comes from the style and the background
+			CharSequence text = getText();
+			setText("");
+			int unspecified = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+			measure(unspecified, unspecified);
+			minWidth = getMeasuredWidth();
+			setText(text);
+		}
+		int width = (int) FloatMath.ceil(getPaint().measureText(tag)) + getCompoundPaddingLeft()
+				+ getCompoundPaddingRight();
+		return Math.max(width, minWidth);
+	}
 }
@@ -0,0 +1,134 @@
+package bsoule.tagtime;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/*
+ * Process-wide write-behind queue for the tags of pings, so that saving tags
+ * in EditPing does not run database transactions on the UI thread.
+ *
+ * A single worker thread owns the writes. Tags submitted for a ping replace
+ * any tags still queued for it, so moving quickly through a backlog of pings
+ * only writes the final state of each. The worker waits briefly after the
+ * first submission so that a burst of them is applied in one transaction.
+ *
+ * Tags that are queued but not written yet are returned by getPending(), and
+ * readers that need the database itself to be up to date can awaitIdle().
+ */
+public class TaggingWriter {
+	private static final String TAG = "TaggingWriter";
+	private static final boolean LOCAL_LOGV = false && !TagTime.DISABLE_LOGV;
+
+	// How long to gather submissions before writing them
+	private static final long BATCH_DELAY_MS = 100;
+
+	private static TaggingWriter sInstance = null;
+
+	private final PingsDbAdapter mDb;
+	// Queued tags by ping id, in submission order
+	private LinkedHashMap<Long, List<String>> mPending = new LinkedHashMap<Long, List<String>>();
+	// Batch currently being written, still visible to getPending()
+	private Map<Long, List<String>> mWriting = null;
+	private Thread mWorker = null;
+
+	public static synchronized TaggingWriter getInstance(Context ctx) {
+		if (sInstance == null) sInstance = new TaggingWriter(ctx.getApplicationContext());
+		return sInstance;
+	}
+
+	private TaggingWriter(Context ctx) {
+		mDb = new PingsDbAdapter(ctx);
+	}
+
+	/** Queues the tags of a ping to be written, replacing any queued before. */
+	public synchronized void submit(long pingid, List<String> tags) {
+		if (LOCAL_LOGV) Log.v(TAG, "submit: ping " + pingid + " tags " + tags);
+		// Moved to the end, so that writes keep the order of the last edits
+		mPending.remove(pingid);
+		mPending.put(pingid, new ArrayList<String>(tags));
+		if (mWorker == null) {
+			mWorker = new Thread(mWriteLoop, TAG);
+			mWorker.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Returns the tags queued for a ping that may not be in the database yet,
+	 * or null if there are none.
+	 */
+	public synchronized List<String> getPending(long pingid) {
+		List<String> tags = mPending.get(pingid);
+		if (tags == null && mWriting != null) tags = mWriting.get(pingid);
+		return (tags != null) ? new ArrayList<String>(tags) : null;
+	}
+
+	/** Blocks until everything submitted so far is written. */
+	public synchronized void awaitIdle() {
+		while (!mPending.isEmpty() || mWriting != null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private final Runnable mWriteLoop = new Runnable() {
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			mDb.open();
+			while (true) {
+				Map<Long, List<String>> batch;
+				synchronized (TaggingWriter.this) {
+					while (mPending.isEmpty()) {
+						try {
+							TaggingWriter.this.wait();
+						} catch (InterruptedException e) {
+							// Keep serving, the queue outlives its callers
+						}
+					}
+				}
+				try {
+					Thread.sleep(BATCH_DELAY_MS);
+				} catch (InterruptedException e) {
+					// Write what we have
+				}
+				synchronized (TaggingWriter.this) {
+					batch = mPending;
+					mWriting = batch;
+					mPending = new LinkedHashMap<Long, List<String>>();
+				}
+				write(batch);
+				synchronized (TaggingWriter.this) {
+					mWriting = null;
+					TaggingWriter.this.notifyAll();
+				}
+			}
+		}
+	};
+
+	private void write(Map<Long, List<String>> batch) {
+		if (LOCAL_LOGV) Log.v(TAG, "write: " + batch.size() + " pings");
+		try {
+			if (mDb.updateTaggings(batch)) return;
+		} catch (Exception e) {
+			Log.w(TAG, "write: batch failed: " + e.getMessage());
+		}
+		// Retry one by one so that one bad ping does not lose the others
+		for (Map.Entry<Long, List<String>> e : batch.entrySet()) {
+			try {
+				mDb.updateTaggings(e.getKey(), e.getValue());
+			} catch (Exception ex) {
+				Log.e(TAG, "write: could not write tags of ping " + e.getKey() + ": " + ex.getMessage());
+			}
+		}
+	}
+}
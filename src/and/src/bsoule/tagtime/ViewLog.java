@@ -1,27 +1,30 @@
 package bsoule.tagtime;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.HashSet;
 import java.util.Set;
 
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import android.widget.ProgressBar;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.actionbarsherlock.app.ActionBar;
@@ -38,49 +41,42 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 	private BeeminderDbAdapter mBeeDb;
 	private PingCursorAdapter mPingAdapter;
 
-	private SimpleDateFormat mSDF;
-	private Map<Long, String> mTagList = new HashMap<Long, String>();
+	private PingTimeFormatter mTimeFormat;
 	private ListView mListView;
 	private ProgressBar mProgress;
 	private TextView mNoData;
 
 	private ActionBar mAction;
 
-	private void refreshTagList() {
-		Cursor c = mDbHelper.fetchAllTags("ROWID");
-		mTagList.clear();
+	// Rows around a row with unknown Beeminder status whose status is
+	// prefetched along with it
+	private static final int PREFETCH_BEHIND = 20;
+	private static final int PREFETCH_AHEAD = 80;
+	private PrefetchTask mPrefetchTask = null;
+	private int mPrefetchPosition = -1;
 
-		int idxrow = c.getColumnIndex(PingsDbAdapter.KEY_ROWID);
-		int idxtag = c.getColumnIndex(PingsDbAdapter.KEY_TAG);
+	// Start loading the next page when the last visible row is this close to
+	// the end of the loaded pings
+	private static final int LOAD_MORE_THRESHOLD = 30;
+	private PagedPingsLoader mLoader;
 
-		try {
-			c.moveToFirst();
-			while (!c.isAfterLast()) {
-				mTagList.put(c.getLong(idxrow), c.getString(idxtag));
-				c.moveToNext();
-			}
-		} finally {
-			c.close();
-		}
-	}
-
-	public static final class PingsCursorLoader extends SimpleCursorLoader {
-
-		private PingsDbAdapter mHelper;
+	// Month sections for fast scrolling, and the position the thumb was
+	// dragged to while its page was still loading
+	private PingMonthIndex.Snapshot mSections = PingMonthIndex.getInstance().snapshot();
+	private int mPendingPosition = -1;
 
-		public PingsCursorLoader(Context context, PingsDbAdapter helper) {
-			super(context);
-			mHelper = helper;
-		}
+	// Tags of pings edited since their page was loaded, by ping id
+	private final HashMap<Long, String> mTagOverrides = new HashMap<Long, String>();
 
-		@Override
-		public Cursor loadInBackground() {
-			return mHelper.fetchAllPings(true);
-		}
-
-	}
+	// Set in onDestroy(). The databases are closed once no prefetch uses them
+	private boolean mDestroyed = false;
 
-	public final class PingCursorAdapter extends CursorAdapter {
+	/*
+	 * Lets the fast scroll thumb jump by month. The sections cover the whole
+	 * log, so jumping to a month that is not loaded yet asks the loader for
+	 * the pages up to it and scrolls there once they arrive.
+	 */
+	public final class PingCursorAdapter extends CursorAdapter implements SectionIndexer {
 
 		private Context mContext;
 
@@ -89,6 +85,9 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 			TextView tagText;
 			TextView yellowBeeText;
 			TextView redBeeText;
+			// TextView keeps a reference to the chars it shows, so every row
+			// needs its own buffer
+			char[] pingChars;
 		}
 
 		public PingCursorAdapter(Context context, Cursor c, int flags) {
@@ -101,11 +100,34 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 			mContext = context;
 		}
 
+		public Object[] getSections() {
+			return mSections.labels;
+		}
+
+		public int getPositionForSection(int section) {
+			if (mSections.positions.length == 0) return 0;
+			section = Math.max(0, Math.min(section, mSections.positions.length - 1));
+			int position = mSections.positions[section];
+			int count = getCount();
+			if (position >= count && mLoader != null) {
+				mPendingPosition = position;
+				mLoader.loadUntil(position + PREFETCH_AHEAD);
+				return Math.max(0, count - 1);
+			}
+			mPendingPosition = -1;
+			return position;
+		}
+
+		public int getSectionForPosition(int position) {
+			return mSections.sectionForPosition(position);
+		}
+
 		@Override
 		public View newView(Context context, Cursor cursor, ViewGroup parent) {
 			View view = LayoutInflater.from(mContext).inflate(R.layout.tagtime_viewlog_ping_row, parent, false);
 			ViewHolder viewHolder = new ViewHolder();
 			viewHolder.pingText = (TextView) view.findViewById(R.id.viewlog_row_time);
+			viewHolder.pingChars = new char[mTimeFormat.maxLength()];
 			viewHolder.tagText = (TextView) view.findViewById(R.id.viewlog_row_tags);
 			viewHolder.yellowBeeText = (TextView) view.findViewById(R.id.viewlog_row_beeminder);
 			viewHolder.redBeeText = (TextView) view.findViewById(R.id.viewlog_row_beeminder_red);
@@ -120,58 +142,276 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 			// Convert ping time to readable text
 			int pingidx = cursor.getColumnIndex(PingsDbAdapter.KEY_PING);
 			long pingtime = cursor.getLong(pingidx);
-			vh.pingText.setText(mSDF.format(new Date(pingtime * 1000)));
+			int len = mTimeFormat.format(pingtime, vh.pingChars, 0);
+			vh.pingText.setText(vh.pingChars, 0, len);
 
-			// Figure out Beeminder submission status and update icons, also
-			// setting the tag string
+			String tags = mTagOverrides.get(cursor.getLong(0));
+			if (tags == null) {
+				int tagsidx = cursor.getColumnIndex(PingsDbAdapter.KEY_TAGS);
+				tags = cursor.isNull(tagsidx) ? "" : cursor.getString(tagsidx);
+			}
+			vh.tagText.setText(tags.length() == 0 ? "" : " " + tags);
+
+			// Beeminder submission status comes from the prefetched cache, rows
+			// not in there yet get their icons once the prefetch is done
+			switch (BeeminderStatus.getInstance().get(cursor.getLong(0))) {
+			case BeeminderStatus.PENDING:
+				vh.yellowBeeText.setVisibility(View.GONE);
+				vh.redBeeText.setVisibility(View.VISIBLE);
+				break;
+			case BeeminderStatus.SUBMITTED:
+				vh.yellowBeeText.setVisibility(View.VISIBLE);
+				vh.redBeeText.setVisibility(View.GONE);
+				break;
+			case BeeminderStatus.UNKNOWN:
+				requestPrefetch(cursor.getPosition());
+				// fall through
+			default:
+				vh.yellowBeeText.setVisibility(View.GONE);
+				vh.redBeeText.setVisibility(View.GONE);
+			}
+		}
+
+	}
+
+	/*
+	 * Computes Beeminder states for a window of pings in the background and
+	 * rebinds the visible rows once they are cached.
+	 */
+	private class PrefetchTask extends AsyncTask<Void, Void, Boolean> {
+		private final long[] mIds;
+		private final long[] mTimes;
+
+		public PrefetchTask(long[] ids, long[] times) {
+			mIds = ids;
+			mTimes = times;
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... params) {
 			try {
-				Cursor c = mBeeDb.fetchPointPings(cursor.getLong(0), BeeminderDbAdapter.KEY_PID);
-				List<Long> tags = mDbHelper.fetchTagsForPing(cursor.getLong(0));
-				Set<Long> goals = mBeeDb.findGoalsForTags(tags);
-				int numgoals = 0;
-				for (long gid : goals) {
-					// If goal was updated later than the ping, skip this goal
-					long updated_at = mBeeDb.getGoalUpdatedAt(gid);
-					if (updated_at < pingtime) numgoals++;
-				}
+				return BeeminderStatus.getInstance().prefetch(mDbHelper, mBeeDb, mIds, mTimes);
+			} catch (Exception e) {
+				Log.w(TAG, "PrefetchTask: Could not fetch Beeminder states: " + e.getMessage());
+				return null;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Boolean result) {
+			mPrefetchTask = null;
+			if (mDestroyed) {
+				closeDatabases();
+				return;
+			}
+			// Rebinding requests another prefetch if the data changed meanwhile,
+			// but on errors we wait for the next scroll
+			if (result != null) rebindVisibleRows();
+		}
+
+		@Override
+		protected void onCancelled() {
+			mPrefetchTask = null;
+			if (mDestroyed) closeDatabases();
+		}
+	}
+
+	private void closeDatabases() {
+		mBeeDb.close();
+		mDbHelper.close();
+	}
+
+	private final Runnable mStartPrefetch = new Runnable() {
+		public void run() {
+			startPrefetch();
+		}
+	};
+
+	/**
+	 * Schedules a prefetch around the given cursor position. Called while
+	 * binding, so the cursor is only walked after binding is done.
+	 */
+	private void requestPrefetch(int position) {
+		if (mPrefetchTask != null || mPrefetchPosition >= 0) return;
+		mPrefetchPosition = position;
+		mListView.post(mStartPrefetch);
+	}
 
-				if (c.getCount() != numgoals) {
-					// TODO: We should check whether existing points and
-					// goals match exactly instead of just checking the
-					// count
-					vh.yellowBeeText.setVisibility(View.GONE);
-					vh.redBeeText.setVisibility(View.VISIBLE);
-				} else if (c.getCount() != 0) {
-					vh.yellowBeeText.setVisibility(View.VISIBLE);
-					vh.redBeeText.setVisibility(View.GONE);
+	private void startPrefetch() {
+		int position = mPrefetchPosition;
+		mPrefetchPosition = -1;
+		Cursor c = mPingAdapter.getCursor();
+		if (mDestroyed || mPrefetchTask != null || c == null || c.isClosed()) return;
+
+		int from = Math.max(0, position - PREFETCH_BEHIND);
+		int to = Math.min(c.getCount(), position + PREFETCH_AHEAD);
+		if (from >= to) return;
+		long[] ids = new long[to - from];
+		long[] times = new long[to - from];
+		int n = 0;
+		int pingidx = c.getColumnIndex(PingsDbAdapter.KEY_PING);
+		BeeminderStatus status = BeeminderStatus.getInstance();
+		for (int i = from; i < to; i++) {
+			if (!c.moveToPosition(i)) break;
+			long id = c.getLong(0);
+			if (status.get(id) != BeeminderStatus.UNKNOWN) continue;
+			ids[n] = id;
+			times[n] = c.getLong(pingidx);
+			n++;
+		}
+		if (n == 0) return;
+		if (n < ids.length) {
+			long[] shortIds = new long[n];
+			long[] shortTimes = new long[n];
+			System.arraycopy(ids, 0, shortIds, 0, n);
+			System.arraycopy(times, 0, shortTimes, 0, n);
+			ids = shortIds;
+			times = shortTimes;
+		}
+		mPrefetchTask = new PrefetchTask(ids, times);
+		mPrefetchTask.execute();
+	}
+
+	// Pings whose Beeminder state was invalidated since the last rebind
+	private final Set<Long> mDirtyRows = new HashSet<Long>();
+	private boolean mAllRowsDirty = false;
+
+	private final Runnable mRebind = new Runnable() {
+		public void run() {
+			if (mDestroyed) return;
+			long[] ids;
+			synchronized (mDirtyRows) {
+				if (mAllRowsDirty) {
+					ids = null;
 				} else {
-					vh.yellowBeeText.setVisibility(View.GONE);
-					vh.redBeeText.setVisibility(View.GONE);
+					ids = new long[mDirtyRows.size()];
+					int i = 0;
+					for (long id : mDirtyRows)
+						ids[i++] = id;
 				}
-				c.close();
-				String tagstr = "";
-				for (long tag : tags)
-					tagstr = tagstr + " " + mTagList.get(tag);
-				vh.tagText.setText(tagstr);
-			} catch (Exception e) {}
+				mDirtyRows.clear();
+				mAllRowsDirty = false;
+			}
+			if (ids == null) {
+				mPingAdapter.notifyDataSetChanged();
+			} else {
+				for (long id : ids)
+					rebindRow(id);
+			}
+		}
+	};
+
+	private final BeeminderStatus.OnInvalidateListener mInvalidateListener = new BeeminderStatus.OnInvalidateListener() {
+		public void onInvalidate(long pingId) {
+			// May be called from BeeminderService, rebind on the UI thread once
+			// for a burst of changes
+			synchronized (mDirtyRows) {
+				if (pingId < 0) mAllRowsDirty = true;
+				else mDirtyRows.add(pingId);
+			}
+			mListView.removeCallbacks(mRebind);
+			mListView.post(mRebind);
+		}
+	};
+
+	/** Rebinds the row showing the given ping, if it is visible. */
+	private void rebindRow(long id) {
+		int first = mListView.getFirstVisiblePosition();
+		int count = mPingAdapter.getCount();
+		for (int i = 0; i < mListView.getChildCount(); i++) {
+			int position = first + i;
+			if (position < count && mPingAdapter.getItemId(position) == id) {
+				mPingAdapter.getView(position, mListView.getChildAt(i), mListView);
+				return;
+			}
 		}
+	}
 
+	/** Rebinds the visible rows in place, without laying out the list. */
+	private void rebindVisibleRows() {
+		int first = mListView.getFirstVisiblePosition();
+		int count = mPingAdapter.getCount();
+		for (int i = 0; i < mListView.getChildCount() && first + i < count; i++) {
+			mPingAdapter.getView(first + i, mListView.getChildAt(i), mListView);
+		}
+	}
+
+	/**
+	 * Orders the tags of an edited ping by tag id, the order in which the
+	 * loader returns them.
+	 */
+	private String orderTags(String tags) {
+		String[] names = tags.trim().split("\\s+");
+		long[] keys = new long[names.length];
+		for (int i = 0; i < names.length; i++)
+			keys[i] = mDbHelper.getTID(names[i]);
+		// Insertion sort, pings only have a handful of tags
+		for (int i = 1; i < names.length; i++) {
+			for (int j = i; j > 0 && keys[j - 1] > keys[j]; j--) {
+				long k = keys[j];
+				keys[j] = keys[j - 1];
+				keys[j - 1] = k;
+				String n = names[j];
+				names[j] = names[j - 1];
+				names[j - 1] = n;
+			}
+		}
+		return TextUtils.join(" ", names).trim();
 	}
 
 	// Called when a new Loader needs to be created
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 		// Now create and return a CursorLoader that will take care of
 		// creating a Cursor for the data being displayed.
-		return new PingsCursorLoader(ViewLog.this, mDbHelper);
+		return new PagedPingsLoader(ViewLog.this);
 	}
 
 	// Called when a previously created loader has finished loading
 	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-		// Swap the new cursor in. (The framework will take care of closing the
-		// old cursor once we return.)
+		// The loader survives configuration changes, so keep track of it here
+		mLoader = (PagedPingsLoader) loader;
 		mProgress.setVisibility(View.GONE);
 		mListView.setEmptyView(mNoData);
+		// The fast scroller picks up new sections when the data set changes
+		mSections = PingMonthIndex.getInstance().snapshot();
+		Cursor page = mLoader.takeNewPage();
+		if (page != null && !mTagOverrides.isEmpty()) dropLoadedOverrides(page);
+		// Swap the new cursor in. (The loader shares pages between the cursors
+		// it delivers and takes care of closing them.)
 		mPingAdapter.swapCursor(data);
+		if (mPendingPosition >= 0 && mPendingPosition < data.getCount()) {
+			mListView.setSelection(mPendingPosition);
+			mPendingPosition = -1;
+		}
+	}
+
+	/**
+	 * Forgets the tag overrides of pings that a newly loaded page shows with
+	 * the same tags. Loaded pages are only queried again by a reload, and
+	 * pages queried before an edit went through still have the old tags, so
+	 * their overrides are kept until then.
+	 */
+	private void dropLoadedOverrides(Cursor data) {
+		int tagsidx = data.getColumnIndex(PingsDbAdapter.KEY_TAGS);
+		data.moveToFirst();
+		while (!data.isAfterLast() && !mTagOverrides.isEmpty()) {
+			Long id = data.getLong(0);
+			String override = mTagOverrides.get(id);
+			if (override != null) {
+				String tags = data.isNull(tagsidx) ? "" : data.getString(tagsidx);
+				if (sameTags(override, tags)) mTagOverrides.remove(id);
+			}
+			data.moveToNext();
+		}
+	}
+
+	/** Compares two space separated tag lists regardless of their order. */
+	private static boolean sameTags(String a, String b) {
+		String[] as = a.trim().split("\\s+");
+		String[] bs = b.trim().split("\\s+");
+		Arrays.sort(as);
+		Arrays.sort(bs);
+		return Arrays.equals(as, bs);
 	}
 
 	// Called when a previously created loader is reset, making the data
@@ -181,6 +421,7 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 		// above is about to be closed. We need to make sure we are no
 		// longer using it.
 		mPingAdapter.swapCursor(null);
+		mLoader = null;
 	}
 
 	@Override
@@ -197,7 +438,7 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 		mBeeDb = new BeeminderDbAdapter(this);
 		mBeeDb.open();
 
-		mSDF = new SimpleDateFormat("yyyy.MM.dd'\n'HH:mm:ss", Locale.getDefault());
+		mTimeFormat = new PingTimeFormatter('\n', false);
 		mPingAdapter = new PingCursorAdapter(this, null, true);
 		mListView = (ListView) findViewById(R.id.listview);
 		mListView.setFastScrollEnabled(true);
@@ -211,25 +452,55 @@ public class ViewLog extends SherlockFragmentActivity implements LoaderManager.L
 				startActivityForResult(i, ACTIVITY_EDIT);
 			}
 		});
+		mListView.setOnScrollListener(new OnScrollListener() {
+
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+				if (mLoader != null && totalItemCount > 0
+						&& firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+					mLoader.loadMore();
+				}
+			}
+		});
 		mNoData = (TextView) findViewById(R.id.nodata);
 		mProgress = (ProgressBar) findViewById(R.id.progressbar);
 		mListView.setEmptyView(mProgress);
 
+		// Stays registered while paused, so that changes made meanwhile (e.g.
+		// in EditPing) reach the visible rows
+		BeeminderStatus.getInstance().setOnInvalidateListener(mInvalidateListener);
+
 		getSupportLoaderManager().initLoader(0, null, this);
-		refreshTagList();
 	}
 
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
 		super.onActivityResult(requestCode, resultCode, intent);
-		refreshTagList();
-		mPingAdapter.notifyDataSetChanged();
+		if (resultCode != RESULT_OK || intent == null) return;
+
+		// Only the edited rows need new tags. Their Beeminder states were
+		// invalidated by the edit and are rebound through mInvalidateListener.
+		long[] ids = intent.getLongArrayExtra(EditPing.KEY_EDITED_IDS);
+		String[] tags = intent.getStringArrayExtra(EditPing.KEY_EDITED_TAGS);
+		if (ids == null || tags == null) return;
+		for (int i = 0; i < ids.length && i < tags.length; i++) {
+			mTagOverrides.put(ids[i], orderTags(tags[i]));
+			rebindRow(ids[i]);
+		}
 	}
 
 	@Override
 	protected void onDestroy() {
-		mBeeDb.close();
-		mDbHelper.close();
+		mDestroyed = true;
+		BeeminderStatus.getInstance().setOnInvalidateListener(null);
+		mListView.removeCallbacks(mRebind);
+		mListView.removeCallbacks(mStartPrefetch);
+		// A running prefetch closes the databases when it is done
+		if (mPrefetchTask != null) mPrefetchTask.cancel(false);
+		else closeDatabases();
 		super.onDestroy();
 	}
 
@@ -0,0 +1,107 @@
+package bsoule.tagtime;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/*
+ * Checks with EXPLAIN QUERY PLAN that the lookups of taggings by tag, goal
+ * tags by tag and point pings by ping use their indexes, so that a schema
+ * change cannot quietly turn them back into full table scans. The SQL comes
+ * from the adapters, which is why this test is in their package, and runs
+ * on schemas the adapters create in scratch databases.
+ *
+ * Depending on the SQLite version and on whether the index answers the query
+ * by itself, plans say "WITH INDEX", "USING INDEX" or "USING COVERING INDEX",
+ * so they are only checked for "INDEX <name>".
+ */
+public class QueryPlanTest extends AndroidTestCase {
+
+	private Context mContext;
+	private SQLiteDatabase mDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "plan.");
+		mContext.deleteDatabase(PingsDbAdapter.DATABASE_NAME);
+		mContext.deleteDatabase(BeeminderDbAdapter.DATABASE_NAME);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mDb != null) mDb.close();
+		mContext.deleteDatabase(PingsDbAdapter.DATABASE_NAME);
+		mContext.deleteDatabase(BeeminderDbAdapter.DATABASE_NAME);
+		super.tearDown();
+	}
+
+	private void openPings() {
+		PingsDbAdapter db = new PingsDbAdapter(mContext);
+		db.open();
+		db.close();
+		mDb = mContext.openOrCreateDatabase(PingsDbAdapter.DATABASE_NAME, 0, null);
+	}
+
+	private void openBeeminder() {
+		BeeminderDbAdapter db = new BeeminderDbAdapter(mContext);
+		db.open();
+		db.close();
+		mDb = mContext.openOrCreateDatabase(BeeminderDbAdapter.DATABASE_NAME, 0, null);
+	}
+
+	/** Fails unless the plan of sql, run with args, uses the given index. */
+	private void assertUsesIndex(String index, String sql, String... args) {
+		StringBuilder plan = new StringBuilder();
+		Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+		try {
+			int idx = c.getColumnIndexOrThrow("detail");
+			c.moveToFirst();
+			while (!c.isAfterLast()) {
+				plan.append(c.getString(idx)).append('\n');
+				c.moveToNext();
+			}
+		} finally {
+			c.close();
+		}
+		assertTrue("Expected " + index + " for: " + sql + "\nPlan:\n" + plan, plan.indexOf("INDEX " + index) >= 0);
+	}
+
+	/** fetchTaggings(tid, KEY_TID) */
+	public void testFetchTaggingsByTag() {
+		openPings();
+		assertUsesIndex("tag_ping_tag_id", PingsDbAdapter.taggingsQuery(1, PingsDbAdapter.KEY_TID));
+	}
+
+	/** updateTagCache() */
+	public void testUpdateTagCache() {
+		openPings();
+		assertUsesIndex("tag_ping_tag_id", PingsDbAdapter.SQL_UPDATE_TAGCACHE, "1", "1");
+	}
+
+	/** cleanupUnusedTags() */
+	public void testCleanupUnusedTags() {
+		openPings();
+		assertUsesIndex("tag_ping_tag_id", PingsDbAdapter.tagUsesQuery(1));
+	}
+
+	/** fetchGoalTags(tid, KEY_TID), used by findGoalsForTags() */
+	public void testGoalTagsByTag() {
+		openBeeminder();
+		assertUsesIndex("goaltags_tag_id", BeeminderDbAdapter.goalTagsQuery(1, BeeminderDbAdapter.KEY_TID));
+	}
+
+	/** fetchPointPings(pid, KEY_PID) */
+	public void testPointPingsByPing() {
+		openBeeminder();
+		assertUsesIndex("pointpings_ping_id", BeeminderDbAdapter.pointPingsQuery(1, BeeminderDbAdapter.KEY_PID));
+	}
+
+	/** countPointPings() */
+	public void testCountPointPings() {
+		openBeeminder();
+		assertUsesIndex("pointpings_ping_id", BeeminderDbAdapter.countPointPingsQuery(new long[] { 1, 2, 3 }));
+	}
+}
@@ -0,0 +1,68 @@
+package bsoule.tagtime.tests;
+
+import java.util.List;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import bsoule.tagtime.BeeminderDbAdapter;
+
+/*
+ * Daily points through the BeeminderDbAdapter calls BeeminderService makes
+ * when pings of a day are tagged and untagged. Runs on a scratch copy of the
+ * database, the app's data is not touched.
+ */
+public class DailyPointTest extends AndroidTestCase {
+
+	private static final String DATABASE_NAME = "timepie_beeminder";
+	private static final long GOAL = 1;
+	// Local noon of the day, as daily points are stamped
+	private static final long DAY = 1400000000L;
+
+	private Context mContext;
+	private BeeminderDbAdapter mDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "daily.");
+		mContext.deleteDatabase(DATABASE_NAME);
+		mDb = new BeeminderDbAdapter(mContext);
+		mDb.open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDb.close();
+		mContext.deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+
+	/**
+	 * Untagging the only ping of a submitted daily point queues its deletion.
+	 * Another ping of the same day tagged before the deletion is sent must go
+	 * into a new point, not into the one being deleted.
+	 */
+	public void testUntagThenRetagSameDay() throws Exception {
+		long first = mDb.createPoint("submitted", 0.75, DAY, "TagTime pings: 1", GOAL);
+		mDb.newPointPing(first, 10);
+		assertEquals(first, mDb.findPoint(GOAL, DAY));
+
+		// Ping 10 untagged
+		mDb.queuePointDelete(10, GOAL, first);
+		assertEquals(-1, mDb.findPoint(GOAL, DAY));
+
+		// Ping 11 of the same day tagged
+		long second = mDb.createPoint(BeeminderDbAdapter.LOCAL_REQID + GOAL + ":" + DAY, 0, DAY, "", GOAL);
+		assertTrue(second != first);
+		mDb.newPointPing(second, 11);
+		assertEquals(second, mDb.findPoint(GOAL, DAY));
+		List<Long> pings = mDb.fetchPingsForPoint(second);
+		assertEquals(1, pings.size());
+		assertEquals(11L, pings.get(0).longValue());
+
+		// The deletion went through
+		mDb.removePoint(first);
+		assertEquals(second, mDb.findPoint(GOAL, DAY));
+	}
+}
@@ -0,0 +1,174 @@
+package bsoule.tagtime.tests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+import bsoule.tagtime.PingsDbAdapter;
+
+/*
+ * Insert rates of PingsDbAdapter with its cached statements, against the
+ * way pings were inserted before, with ContentValues and tag lookups built
+ * as SQL strings for every call. Results go to the log under TAG:
+ *
+ * adb logcat -s PingsDbAdapterBenchmark
+ *
+ * Runs on a scratch copy of the database, the app's data is not touched.
+ */
+public class PingsDbAdapterBenchmark extends AndroidTestCase {
+	private static final String TAG = "PingsDbAdapterBenchmark";
+
+	private static final String DATABASE_NAME = "timepiedata";
+	private static final int PINGS = 500;
+	private static final int PERIOD = 45;
+	private static final List<String> TAGS = Arrays.asList(new String[] { "work", "email" });
+
+	private Context mContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "bench.");
+		mContext.deleteDatabase(DATABASE_NAME);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mContext.deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+
+	/**
+	 * Logs pings with two tags one by one, each in its own transaction, first
+	 * the old way and then through PingsDbAdapter.createPing().
+	 */
+	public void testCreatePingRate() {
+		// Creates the schema and the tags
+		PingsDbAdapter db = new PingsDbAdapter(mContext);
+		db.open();
+		for (String t : TAGS)
+			db.getOrMakeNewTID(t);
+		db.close();
+
+		SQLiteDatabase raw = mContext.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		long start = System.nanoTime();
+		for (int i = 0; i < PINGS; i++)
+			uncachedCreatePing(raw, 1000000000L + i, TAGS);
+		long before = System.nanoTime() - start;
+		raw.close();
+
+		db.open();
+		start = System.nanoTime();
+		for (int i = 0; i < PINGS; i++)
+			db.createPing(2000000000L + i, "", TAGS, PERIOD);
+		long after = System.nanoTime() - start;
+		Cursor c = db.fetchAllPings(false);
+		int count = c.getCount();
+		c.close();
+		db.close();
+
+		assertEquals(2 * PINGS, count);
+		report("createPing", before, after);
+	}
+
+	/**
+	 * Inserts pings in a single transaction, compiling the statement for every
+	 * insert and then reusing one compiled statement. Without the commits this
+	 * shows the cost of compiling alone.
+	 */
+	public void testStatementReuseRate() {
+		PingsDbAdapter db = new PingsDbAdapter(mContext);
+		db.open();
+		db.close();
+
+		String sql = "INSERT INTO pings (ping, notes, period) VALUES (?, ?, ?)";
+		SQLiteDatabase raw = mContext.openOrCreateDatabase(DATABASE_NAME, 0, null);
+		try {
+			raw.beginTransaction();
+			long start = System.nanoTime();
+			try {
+				for (int i = 0; i < PINGS; i++) {
+					SQLiteStatement stmt = raw.compileStatement(sql);
+					bindPing(stmt, 1000000000L + i);
+					stmt.executeInsert();
+					stmt.close();
+				}
+				raw.setTransactionSuccessful();
+			} finally {
+				raw.endTransaction();
+			}
+			long before = System.nanoTime() - start;
+
+			raw.beginTransaction();
+			start = System.nanoTime();
+			SQLiteStatement stmt = raw.compileStatement(sql);
+			try {
+				for (int i = 0; i < PINGS; i++) {
+					bindPing(stmt, 2000000000L + i);
+					stmt.executeInsert();
+				}
+				raw.setTransactionSuccessful();
+			} finally {
+				stmt.close();
+				raw.endTransaction();
+			}
+			long after = System.nanoTime() - start;
+
+			Cursor c = raw.rawQuery("SELECT COUNT(*) FROM pings", null);
+			c.moveToFirst();
+			assertEquals(2 * PINGS, c.getLong(0));
+			c.close();
+			report("statement reuse", before, after);
+		} finally {
+			raw.close();
+		}
+	}
+
+	private static void bindPing(SQLiteStatement stmt, long pingtime) {
+		stmt.bindLong(1, pingtime);
+		stmt.bindString(2, "");
+		stmt.bindLong(3, PERIOD);
+	}
+
+	/** Logs a ping the way PingsDbAdapter did before it cached statements. */
+	private static void uncachedCreatePing(SQLiteDatabase raw, long pingtime, List<String> tags) {
+		raw.beginTransaction();
+		try {
+			ContentValues ping = new ContentValues();
+			ping.put("ping", pingtime);
+			ping.put("notes", "");
+			ping.put("period", PERIOD);
+			long pid = raw.insert("pings", null, ping);
+			for (String t : tags) {
+				Cursor c = raw.rawQuery("SELECT _id FROM tags WHERE tag = '" + t + "'", null);
+				c.moveToFirst();
+				long tid = c.getLong(0);
+				c.close();
+				ContentValues tagping = new ContentValues();
+				tagping.put("ping_id", pid);
+				tagping.put("tag_id", tid);
+				raw.insert("tag_ping", null, tagping);
+				raw.execSQL("UPDATE tags SET used_cache = (SELECT COUNT(_id) FROM tag_ping WHERE tag_id = " + tid
+						+ ") WHERE _id = " + tid);
+			}
+			raw.setTransactionSuccessful();
+		} finally {
+			raw.endTransaction();
+		}
+	}
+
+	private static void report(String what, long beforeNanos, long afterNanos) {
+		Log.i(TAG, what + ": before " + rate(beforeNanos) + " inserts/s, after " + rate(afterNanos) + " inserts/s");
+	}
+
+	private static long rate(long nanos) {
+		return PINGS * 1000000000L / Math.max(nanos, 1);
+	}
+}